@@ -5,9 +5,40 @@ import org.apache.hadoop.mapreduce.Reducer;
 /**
  * @author Delano Greenidge
  *
- * This class is dodgy as hell. It gets the output from the mapper, and builds a linked list from the 
- * CabTripSegmens it receives.
+ * Gets the output from the mapper, grouped by taxi (CabIDCombinerGroupComp) and in time
+ * order, and collapses each run of time-contiguous "M"-"M" segments into a single
+ * CabTripSegment holding the run's GPS points.
  */
-@SuppressWarnings("rawtypes")
-public class CabIDCombiner extends Reducer {
+public class CabIDCombiner
+	extends Reducer<CabIDTimestamp, CabTripSegment, CabIDTimestamp, CabTripSegment> {
+
+	private CabTripRunBuilder runs = new CabTripRunBuilder();
+	private CabIDTimestamp runKey = new CabIDTimestamp();
+	private RunCollector collector = new RunCollector();
+
+	/**
+	 * writes each run keyed by its start time
+	 */
+	private class RunCollector implements CabTripRunBuilder.Collector {
+		Context context;
+
+		@Override
+		public void collect(CabTripSegment run) throws IOException, InterruptedException {
+			runKey.settimestamp(run.getStart_timestamp().get());
+			context.write(runKey, run);
+		}
+	}
+
+	@Override
+	public void reduce(CabIDTimestamp key, Iterable<CabTripSegment> values, Context context)
+			throws IOException, InterruptedException {
+
+		runKey.setvehicleID(key.getVehicleID());
+		collector.context = context;
+
+		runs.reset();
+		for (CabTripSegment segment : values)
+			runs.add(segment, collector);
+		runs.flush(collector);
+	}
 }
@@ -5,7 +5,15 @@ public class CabIDCombinerGroupComp
   	extends WritableComparator {
 
 		 public CabIDCombinerGroupComp() {
-		     super(CabIDTimestamp.class, true);
+		     super(CabIDTimestamp.class);
+		 }
+
+		 /**
+		  * compares the vehicle IDs of serialized keys directly
+		  */
+		 @Override
+		 public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			 return CabIDTimestamp.compareVehicleIDs(b1, s1, b2, s2);
 		 }
 		
 
@@ -20,6 +28,6 @@ public class CabIDCombinerGroupComp
 			 CabIDTimestamp pair = (CabIDTimestamp) wc1;
 			 CabIDTimestamp pair2 = (CabIDTimestamp) wc2;
 			 
-			 return (Integer.parseInt(pair.getVehicleID().toString()) - Integer.parseInt(pair2.getVehicleID().toString()));
+			 return Integer.compare(pair.getVehicleID(), pair2.getVehicleID());
 		 }
   }
\ No newline at end of file
@@ -1,36 +1,36 @@
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
 
+/**
+ * map output key: numeric taxi ID and segment start time
+ * 
+ * serialized as a fixed SIZE bytes - the ID as an int then the timestamp as a long,
+ * both big-endian with the sign bit flipped - so that comparing the bytes gives the
+ * same order as compareTo
+ */
 public class CabIDTimestamp 
     implements WritableComparable<CabIDTimestamp> {
 
-    /**
-     * tripData contains the following fields extracted from each record:
-     * 
-     * "start_lat" - start latitude
-     * "start_long" - start longitude
-     * "duration" - segment length in seconds
-     * "start_status" - "E" (empty) or "M" (in use)
-     * "end_status" - "E" (empty) or "M" (in use)
-     * "end_lat" - end latitude
-     * "end_long" - end longitude 
-     * */
-    //private Text tripData = new Text();
-    private Text vehicleID = new Text(); 
-    private LongWritable timestamp = new LongWritable();
+    // serialized size in bytes
+    public final static int SIZE = 12;
+    // serialized size of the vehicle ID
+    public final static int VEHICLE_ID_SIZE = 4;
+
+    private int vehicleID = 0;
+    private long timestamp = 0L;
 
 
     public CabIDTimestamp() {
     }
 
-    public CabIDTimestamp(String vehicleID, long timestamp/*, Text m*/) {
-        this.vehicleID.set(vehicleID);
-        this.timestamp.set(timestamp);
+    public CabIDTimestamp(int vehicleID, long timestamp) {
+        this.vehicleID = vehicleID;
+        this.timestamp = timestamp;
     }
 
     public static CabIDTimestamp read(DataInput in) throws IOException {
@@ -41,48 +41,76 @@ public class CabIDTimestamp
 
     @Override
     public void write(DataOutput out) throws IOException {
-        vehicleID.write(out);
-        timestamp.write(out);
-        //tripData.write(out);
+        out.writeInt(vehicleID ^ Integer.MIN_VALUE);
+        out.writeLong(timestamp ^ Long.MIN_VALUE);
     }
 
     @Override
     public void readFields(DataInput in) throws IOException {
-        vehicleID.readFields(in);
-        timestamp.readFields(in);
-        //tripData.readFields(in);
+        vehicleID = in.readInt() ^ Integer.MIN_VALUE;
+        timestamp = in.readLong() ^ Long.MIN_VALUE;
     }
 
     @Override
     public int compareTo(CabIDTimestamp pair) {
-        int compareValue = Integer.parseInt(this.getVehicleID().toString()) -
-			Integer.parseInt(pair.getVehicleID().toString());
+        int compareValue = Integer.compare(vehicleID, pair.vehicleID);
         if (compareValue == 0) {
-            compareValue = timestamp.compareTo(pair.gettimestamp());
+            compareValue = Long.compare(timestamp, pair.timestamp);
         }
         return compareValue; 		// to sort ascending 
     }
 
+    /**
+     * compares serialized keys as unsigned bytes: by vehicle ID, then timestamp
+     */
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(CabIDTimestamp.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareBytes(b1, s1, SIZE, b2, s2, SIZE);
+        }
+    }
+
+    static {
+        WritableComparator.define(CabIDTimestamp.class, new Comparator());
+    }
+
+    /**
+     * compare the vehicle IDs of two serialized keys
+     * 
+     * @param b1 - buffer holding first key
+     * @param s1 - start of first key
+     * @param b2 - buffer holding second key
+     * @param s2 - start of second key
+     * @return negative, 0 or positive as for compareTo
+     */
+    public static int compareVehicleIDs(byte[] b1, int s1, byte[] b2, int s2) {
+        return WritableComparator.compareBytes(b1, s1, VEHICLE_ID_SIZE, b2, s2, VEHICLE_ID_SIZE);
+    }
+
     public Text getvehicleIDTimestamp() {
-        return new Text(vehicleID.toString()+timestamp.toString());
+        return new Text(Integer.toString(vehicleID)+Long.toString(timestamp));
     }
     
-    public Text getVehicleID() {
+    public int getVehicleID() {
         return vehicleID;
     }   
      
 
-    public LongWritable gettimestamp() {
+    public long gettimestamp() {
         return timestamp;
     }
 
-    public void setvehicleID(Text vehicleIDAsString) {
-        vehicleID.set(vehicleIDAsString);
+    public void setvehicleID(int vehicleID) {
+        this.vehicleID = vehicleID;
     }
     
     
     public void settimestamp(long timestamp) {
-        this.timestamp.set(timestamp);
+        this.timestamp = timestamp;
     }
 
     @Override
@@ -95,20 +123,13 @@ public class CabIDTimestamp
         }
 
         CabIDTimestamp that = (CabIDTimestamp) o;
-        if (timestamp != null ? !timestamp.equals(that.timestamp) : that.timestamp != null) {
-           return false;
-        }
-        if (vehicleID != null ? !vehicleID.equals(that.vehicleID) : that.vehicleID != null) {
-           return false;
-        }
-
-        return true;
+        return vehicleID == that.vehicleID && timestamp == that.timestamp;
     }
 
     @Override
     public int hashCode() {
-        int result = vehicleID != null ? vehicleID.hashCode() : 0;
-        result = 31 * result + (timestamp != null ? timestamp.hashCode() : 0);
+        int result = vehicleID;
+        result = 31 * result + (int) (timestamp ^ (timestamp >>> 32));
         return result;
     }
 
@@ -5,7 +5,15 @@ public class CabIDTimestampComp
 	extends WritableComparator {
 
 	 public CabIDTimestampComp() {
-	     super(CabIDTimestamp.class, true);
+	     super(CabIDTimestamp.class);
+	 }
+
+	 /**
+	  * compares the vehicle IDs of serialized keys directly
+	  */
+	 @Override
+	 public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+		 return CabIDTimestamp.compareVehicleIDs(b1, s1, b2, s2);
 	 }
 	
 	 @SuppressWarnings("rawtypes")
@@ -18,7 +26,7 @@ public class CabIDTimestampComp
 	 public int compare(WritableComparable  wc1, WritableComparable wc2) {
 		 CabIDTimestamp pair = (CabIDTimestamp) wc1;
 		 CabIDTimestamp pair2 = (CabIDTimestamp) wc2;
-	     int diff = Integer.parseInt(pair.getVehicleID().toString()) - Integer.parseInt(pair2.getVehicleID().toString());
+	     int diff = Integer.compare(pair.getVehicleID(), pair2.getVehicleID());
 	     return diff;
 	 }
 }
@@ -1,14 +1,222 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.log4j.Logger;
 
+/**
+ * sends all of a taxi's segments to the same reducer; if given a partition plan
+ * (see createPlan) taxis are assigned as it says, otherwise by taxi id modulo the
+ * number of reducers
+ */
 public class CabIDTimestampPartitioner 
-	extends  Partitioner<CabIDTimestamp, CabTripSegment> {
+	extends  Partitioner<CabIDTimestamp, CabTripSegment> implements Configurable {
+
+	private static Logger theLogger = Logger.getLogger(CabIDTimestampPartitioner.class);
+
+	// table of taxi<TAB>records, as estimated by the CabTrips sampling pre-pass
+	public final static String TAXI_WEIGHTS = "CabIDTimestampPartitioner.taxiWeights";
+
+	// table of taxi<TAB>partition, shipped in the distributed cache as PLAN_LINK
+	public final static String PLAN = "CabIDTimestampPartitioner.plan";
+	public final static String PLAN_LINK = "taxi-plan";
+
+	private Configuration conf;
+
+	// plan, sorted by taxi
+	private int[] planTaxis = new int[0];
+	private int[] planPartitions = new int[0];
+	private int planSize = 0;
+
+	@Override
+	public void setConf(Configuration conf) {
+		this.conf = conf;
+		String plan = conf.get(PLAN);
+		if (plan != null)
+		{
+			try {
+				readPlan(plan);
+			} catch (IOException e) {
+				theLogger.error("Failed to read partition plan ["+plan+"], using taxi id: "+e.toString());
+				planSize = 0;
+			}
+		}
+	}
+
+	@Override
+	public Configuration getConf() {
+		return conf;
+	}
 
 	@Override
     public int getPartition(CabIDTimestamp pair, 
                             CabTripSegment segment, 
                             int numberOfPartitions) {
+		int taxi = pair.getVehicleID();
+
+		// taxis missing from the sample fall back to taxi id
+		int i = Arrays.binarySearch(planTaxis, 0, planSize, taxi);
+		if (i >= 0)
+			return planPartitions[i] % numberOfPartitions;
+
     	// make sure that partitions are non-negative
-        return Integer.parseInt(pair.getVehicleID().toString()) % numberOfPartitions;
+        return taxi % numberOfPartitions;
     }
 
+
+	/**
+	 * read plan from the distributed cache, or straight from the file system if it is
+	 * not there (e.g. local job runner)
+	 */
+	private void readPlan(String plan) throws IOException
+	{
+		InputStream in;
+		File link = new File(PLAN_LINK);
+		if (link.exists())
+			in = new FileInputStream(link);
+		else
+		{
+			Path pt = new Path(plan);
+			in = pt.getFileSystem(conf).open(pt);
+		}
+
+		planTaxis = new int[1024];
+		planPartitions = new int[1024];
+		planSize = 0;
+		BufferedReader br = new BufferedReader(new InputStreamReader(in));
+		try {
+			String line;
+			while ((line = br.readLine()) != null)
+			{
+				String[] fields = line.split("\t");
+				if (planSize == planTaxis.length)
+				{
+					planTaxis = Arrays.copyOf(planTaxis, planSize * 2);
+					planPartitions = Arrays.copyOf(planPartitions, planSize * 2);
+				}
+				planTaxis[planSize] = Integer.parseInt(fields[0]);
+				planPartitions[planSize] = Integer.parseInt(fields[1]);
+				planSize++;
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+
+	/**
+	 * a taxi and its share of the input
+	 */
+	private static class TaxiWeight {
+		int taxi;
+		long weight;
+
+		TaxiWeight(int taxi, long weight) {
+			this.taxi = taxi;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * a reducer and the weight of the taxis assigned to it
+	 */
+	private static class Bin {
+		int partition;
+		long load = 0L;
+
+		Bin(int partition) {
+			this.partition = partition;
+		}
+	}
+
+	/**
+	 * assign taxis to partitions so that each partition gets a similar share of the
+	 * records: taxis are taken in order of decreasing weight, each going to the
+	 * partition with the least weight so far (longest processing time first)
+	 * 
+	 * @param conf
+	 * @param weights - table of taxi<TAB>weight
+	 * @param plan - receives table of taxi<TAB>partition, sorted by taxi
+	 * @param numPartitions
+	 * @throws IOException
+	 */
+	public static void createPlan(Configuration conf, Path weights, Path plan, int numPartitions) throws IOException
+	{
+		ArrayList<TaxiWeight> taxis = new ArrayList<TaxiWeight>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(weights.getFileSystem(conf).open(weights)));
+		try {
+			String line;
+			while ((line = br.readLine()) != null)
+			{
+				String[] fields = line.split("\t");
+				taxis.add(new TaxiWeight(Integer.parseInt(fields[0]), Long.parseLong(fields[1])));
+			}
+		} finally {
+			br.close();
+		}
+
+		Collections.sort(taxis, new Comparator<TaxiWeight>() {
+			@Override
+			public int compare(TaxiWeight a, TaxiWeight b) {
+				int c = Long.compare(b.weight, a.weight);
+				return c != 0 ? c : Integer.compare(a.taxi, b.taxi);
+			}
+		});
+
+		PriorityQueue<Bin> bins = new PriorityQueue<Bin>(numPartitions, new Comparator<Bin>() {
+			@Override
+			public int compare(Bin a, Bin b) {
+				int c = Long.compare(a.load, b.load);
+				return c != 0 ? c : Integer.compare(a.partition, b.partition);
+			}
+		});
+		for (int i = 0; i < numPartitions; i++)
+			bins.add(new Bin(i));
+
+		int[][] assigned = new int[taxis.size()][];
+		int n = 0;
+		for (TaxiWeight t : taxis)
+		{
+			Bin bin = bins.poll();
+			bin.load += t.weight;
+			bins.add(bin);
+			assigned[n++] = new int[] { t.taxi, bin.partition };
+		}
+
+		long maxLoad = 0L;
+		for (Bin bin : bins)
+			maxLoad = Math.max(maxLoad, bin.load);
+		theLogger.info("Partition plan: "+taxis.size()+" taxis, "+numPartitions+" partitions, largest load "+maxLoad);
+
+		Arrays.sort(assigned, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(a[0], b[0]);
+			}
+		});
+
+		FileSystem fs = plan.getFileSystem(conf);
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fs.create(plan, true)));
+		try {
+			for (int[] a : assigned)
+				out.write(a[0]+"\t"+a[1]+"\n");
+		} finally {
+			out.close();
+		}
+	}
 }
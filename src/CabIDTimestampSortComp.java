@@ -5,8 +5,18 @@ public class CabIDTimestampSortComp
 	extends WritableComparator {
 
 	 public CabIDTimestampSortComp() {
-	     super(CabIDTimestamp.class, true);
+	     super(CabIDTimestamp.class);
 	 }
+
+	 /**
+	  * compares serialized keys directly; see CabIDTimestamp.Comparator
+	  */
+	 @Override
+	 public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+		 return RAW.compare(b1, s1, l1, b2, s2, l2);
+	 }
+
+	 private static final CabIDTimestamp.Comparator RAW = new CabIDTimestamp.Comparator();
 	
 	 @SuppressWarnings("rawtypes")
 	 @Override
@@ -18,9 +28,9 @@ public class CabIDTimestampSortComp
 	 public int compare(WritableComparable  wc1, WritableComparable wc2) {
 		 CabIDTimestamp pair = (CabIDTimestamp) wc1;
 		 CabIDTimestamp pair2 = (CabIDTimestamp) wc2;
-	     int diff = Integer.parseInt(pair.getVehicleID().toString()) - Integer.parseInt(pair2.getVehicleID().toString());
+	     int diff = Integer.compare(pair.getVehicleID(), pair2.getVehicleID());
 	     if (diff == 0)
-	    	 diff = (int) (pair.gettimestamp().get() - pair2.gettimestamp().get());
+	    	 diff = Long.compare(pair.gettimestamp(), pair2.gettimestamp());
 	     return diff;
 	 }
 }
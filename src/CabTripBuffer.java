@@ -0,0 +1,275 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * the segments of the trip being assembled by CabTripReducer, held as parallel arrays
+ * of times and coordinates rather than as CabTripSegment copies; the arrays only grow,
+ * so once they have reached the size of the longest trip, adding a segment allocates
+ * nothing
+ *
+ * also the value type of CabTrips' binary output (CabTripSequenceOutputFormat), read
+ * back by CabTripInputFormat
+ */
+public class CabTripBuffer implements Writable {
+
+	private final static int INITIAL_CAPACITY = 64;
+
+	// coordinates are written as doubles rather than micro-degrees
+	private final static int FLAG_DOUBLES = 0x01;
+
+	private long[] start_timestamp = new long[INITIAL_CAPACITY];
+	private double[] start_lat = new double[INITIAL_CAPACITY];
+	private double[] start_long = new double[INITIAL_CAPACITY];
+	private long[] end_timestamp = new long[INITIAL_CAPACITY];
+	private double[] end_lat = new double[INITIAL_CAPACITY];
+	private double[] end_long = new double[INITIAL_CAPACITY];
+	private int size = 0;
+
+	// micro-degree columns being decoded by readFields
+	private int[] start_e6 = null;
+	private int[] end_e6 = null;
+
+
+	/**
+	 * start a new trip
+	 */
+	public void clear()
+	{
+		size = 0;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * add a segment to the end of the trip; see also CabTripSegment.addTo
+	 */
+	public void add(long start_ts, double start_lat, double start_long,
+			long end_ts, double end_lat, double end_long)
+	{
+		if (size == start_timestamp.length)
+			grow(size * 2);
+
+		this.start_timestamp[size] = start_ts;
+		this.start_lat[size] = start_lat;
+		this.start_long[size] = start_long;
+		this.end_timestamp[size] = end_ts;
+		this.end_lat[size] = end_lat;
+		this.end_long[size] = end_long;
+		size++;
+	}
+
+	/**
+	 * make this a single segment from the start of trip to its end, as summary output shows it
+	 */
+	public void setSummary(CabTripBuffer trip)
+	{
+		int last = trip.size - 1;
+		clear();
+		add(trip.start_timestamp[0], trip.start_lat[0], trip.start_long[0],
+			trip.end_timestamp[last], trip.end_lat[last], trip.end_long[last]);
+	}
+
+	private void grow(int capacity)
+	{
+		start_timestamp = Arrays.copyOf(start_timestamp, capacity);
+		start_lat = Arrays.copyOf(start_lat, capacity);
+		start_long = Arrays.copyOf(start_long, capacity);
+		end_timestamp = Arrays.copyOf(end_timestamp, capacity);
+		end_lat = Arrays.copyOf(end_lat, capacity);
+		end_long = Arrays.copyOf(end_long, capacity);
+	}
+
+	/**
+	 * @return seconds from the start of the first segment to the end of the last
+	 */
+	public long getDuration()
+	{
+		return end_timestamp[size-1] - start_timestamp[0];
+	}
+
+	public long getStart_timestamp(int i) {
+		return start_timestamp[i];
+	}
+
+	public double getStart_lat(int i) {
+		return start_lat[i];
+	}
+
+	public double getStart_long(int i) {
+		return start_long[i];
+	}
+
+	public long getEnd_timestamp(int i) {
+		return end_timestamp[i];
+	}
+
+	public double getEnd_lat(int i) {
+		return end_lat[i];
+	}
+
+	public double getEnd_long(int i) {
+		return end_long[i];
+	}
+
+
+	/**
+	 * columnar wire format:
+	 *
+	 * 		- number of segments as a vint, then a flags byte
+	 * 		- start times, each as a vlong delta from the end of the segment before
+	 * 		  (the first in full), then end times as vlong deltas from their start
+	 * 		- start latitudes in micro-degrees, as vint deltas from the end of the segment
+	 * 		  before, then end latitudes as vint deltas from their start; likewise
+	 * 		  longitudes. With FLAG_DOUBLES, the same four columns as plain doubles
+	 *
+	 * a taxi reports where the last sample left off, so the start columns are mostly
+	 * zeros, which block compression all but removes
+	 */
+	@Override
+	public void write(DataOutput out) throws IOException
+	{
+		boolean doubles = !isFixedPoint();
+		WritableUtils.writeVInt(out, size);
+		out.writeByte(doubles ? FLAG_DOUBLES : 0);
+
+		long last_ts = 0L;
+		for (int i = 0; i < size; i++)
+		{
+			WritableUtils.writeVLong(out, start_timestamp[i] - last_ts);
+			last_ts = end_timestamp[i];
+		}
+		for (int i = 0; i < size; i++)
+			WritableUtils.writeVLong(out, end_timestamp[i] - start_timestamp[i]);
+
+		if (doubles)
+		{
+			writeDoubles(out, start_lat);
+			writeDoubles(out, end_lat);
+			writeDoubles(out, start_long);
+			writeDoubles(out, end_long);
+		}
+		else
+		{
+			writeMicroDegrees(out, start_lat, end_lat);
+			writeMicroDegrees(out, start_long, end_long);
+		}
+	}
+
+	private void writeDoubles(DataOutput out, double[] column) throws IOException
+	{
+		for (int i = 0; i < size; i++)
+			out.writeDouble(column[i]);
+	}
+
+	/**
+	 * write the start and end columns of one coordinate
+	 */
+	private void writeMicroDegrees(DataOutput out, double[] start, double[] end) throws IOException
+	{
+		int last = 0;
+		for (int i = 0; i < size; i++)
+		{
+			int e6 = GpsCoordinates.toMicroDegrees(start[i]);
+			WritableUtils.writeVInt(out, e6 - last);
+			last = GpsCoordinates.toMicroDegrees(end[i]);
+		}
+		for (int i = 0; i < size; i++)
+			WritableUtils.writeVInt(out, GpsCoordinates.toMicroDegrees(end[i]) - GpsCoordinates.toMicroDegrees(start[i]));
+	}
+
+	/**
+	 * @return true if every coordinate held is a whole number of micro-degrees
+	 */
+	private boolean isFixedPoint()
+	{
+		for (int i = 0; i < size; i++)
+		{
+			if (!GpsCoordinates.isMicroDegrees(start_lat[i]) || !GpsCoordinates.isMicroDegrees(start_long[i]) ||
+				!GpsCoordinates.isMicroDegrees(end_lat[i]) || !GpsCoordinates.isMicroDegrees(end_long[i]))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException
+	{
+		int n = WritableUtils.readVInt(in);
+		if (n < 0)
+			throw new IOException("Bad segment count "+n);
+		if (n > start_timestamp.length)
+			grow(Math.max(n, start_timestamp.length * 2));
+		size = n;
+		boolean doubles = (in.readUnsignedByte() & FLAG_DOUBLES) != 0;
+
+		for (int i = 0; i < size; i++)
+			start_timestamp[i] = WritableUtils.readVLong(in);
+		for (int i = 0; i < size; i++)
+			end_timestamp[i] = WritableUtils.readVLong(in);
+		long last_ts = 0L;
+		for (int i = 0; i < size; i++)
+		{
+			start_timestamp[i] += last_ts;
+			end_timestamp[i] += start_timestamp[i];
+			last_ts = end_timestamp[i];
+		}
+
+		if (doubles)
+		{
+			readDoubles(in, start_lat);
+			readDoubles(in, end_lat);
+			readDoubles(in, start_long);
+			readDoubles(in, end_long);
+		}
+		else
+		{
+			readMicroDegrees(in, start_lat, end_lat);
+			readMicroDegrees(in, start_long, end_long);
+		}
+	}
+
+	private void readDoubles(DataInput in, double[] column) throws IOException
+	{
+		for (int i = 0; i < size; i++)
+			column[i] = in.readDouble();
+	}
+
+	/**
+	 * read the start and end columns of one coordinate, written by writeMicroDegrees
+	 */
+	private void readMicroDegrees(DataInput in, double[] start, double[] end) throws IOException
+	{
+		if (start_e6 == null || start_e6.length < size)
+		{
+			start_e6 = new int[start_timestamp.length];
+			end_e6 = new int[start_timestamp.length];
+		}
+
+		for (int i = 0; i < size; i++)
+			start_e6[i] = WritableUtils.readVInt(in);
+		for (int i = 0; i < size; i++)
+			end_e6[i] = WritableUtils.readVInt(in);
+		int last = 0;
+		for (int i = 0; i < size; i++)
+		{
+			start_e6[i] += last;
+			end_e6[i] += start_e6[i];
+			last = end_e6[i];
+			start[i] = GpsCoordinates.toDegrees(start_e6[i]);
+			end[i] = GpsCoordinates.toDegrees(end_e6[i]);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * in-mapper combining of segments: keeps open chains of segments for the most recently
+ * seen taxis, and writes each chain out, sorted by start time and packed into runs
+ * (CabTripRunBuilder), as a partial trip when
+ *
+ * 		- the taxi's next segment starts more than maxGap seconds after the chain ends
+ * 		- more than maxTaxis chains are open; the least recently used one is flushed
+ * 		- more than maxSegments segments are held; least recently used chains are flushed
+ * 		- the mapper finishes (flushAll)
+ *
+ * partial trips of a taxi from different chains or mappers are stitched together by
+ * CabTripReducer, so the choice of limits affects only the volume of map output
+ */
+public class CabTripChainBuffer {
+
+	/**
+	 * receives the packed runs of each flushed chain
+	 */
+	public interface Collector {
+		void collect(int taxi, CabTripSegment run) throws IOException, InterruptedException;
+	}
+
+	private static final Comparator<CabTripSegment> BY_START_TIME = new Comparator<CabTripSegment>() {
+		@Override
+		public int compare(CabTripSegment a, CabTripSegment b) {
+			return Long.compare(a.getStart_timestamp().get(), b.getStart_timestamp().get());
+		}
+	};
+
+	/**
+	 * segments of a single taxi, in arrival order
+	 */
+	private static class Chain {
+		int taxi;
+		ArrayList<CabTripSegment> segments = new ArrayList<CabTripSegment>();
+		long lastEnd = Long.MIN_VALUE;
+	}
+
+	private final int maxTaxis;
+	private final int maxSegments;
+	private final long maxGap;
+
+	// open chains, least recently used first
+	private LinkedHashMap<Integer, Chain> chains = new LinkedHashMap<Integer, Chain>(16, 0.75f, true);
+	private int numSegments = 0;
+
+	// spare objects for reuse
+	private ArrayList<CabTripSegment> freeSegments = new ArrayList<CabTripSegment>();
+	private ArrayList<Chain> freeChains = new ArrayList<Chain>();
+
+	private CabTripRunBuilder runs = new CabTripRunBuilder();
+	private RunCollector runCollector = new RunCollector();
+
+
+	/**
+	 * passes runs of the chain being flushed on with its taxi id
+	 */
+	private static class RunCollector implements CabTripRunBuilder.Collector {
+		Collector out;
+		int taxi;
+
+		@Override
+		public void collect(CabTripSegment run) throws IOException, InterruptedException {
+			out.collect(taxi, run);
+		}
+	}
+
+
+	/**
+	 * @param maxTaxis - most chains kept open
+	 * @param maxSegments - most segments held over all chains
+	 * @param maxGap - longest gap in seconds between a chain's end and the start of its next segment
+	 */
+	public CabTripChainBuffer(int maxTaxis, int maxSegments, long maxGap)
+	{
+		this.maxTaxis = maxTaxis;
+		this.maxSegments = maxSegments;
+		this.maxGap = maxGap;
+	}
+
+
+	/**
+	 * add a copy of seg to the chain for taxi, flushing chains as needed
+	 *
+	 * @param taxi
+	 * @param seg
+	 * @param out - receives runs of any chains flushed
+	 */
+	public void add(int taxi, CabTripSegment seg, Collector out) throws IOException, InterruptedException
+	{
+		Chain chain = chains.get(taxi);
+		if (chain != null && seg.getStart_timestamp().get() - chain.lastEnd > maxGap)
+		{
+			// a long gap ends the partial trip
+			flush(chain, out);
+		}
+		else if (chain == null)
+		{
+			chain = freeChains.isEmpty() ? new Chain() : freeChains.remove(freeChains.size() - 1);
+			chain.taxi = taxi;
+			chains.put(taxi, chain);
+		}
+
+		CabTripSegment copy = freeSegments.isEmpty() ? new CabTripSegment() : freeSegments.remove(freeSegments.size() - 1);
+		copy.set(seg);
+		chain.segments.add(copy);
+		chain.lastEnd = Math.max(chain.lastEnd, seg.getEnd_timestamp().get());
+		numSegments++;
+
+		// evict least recently used chains
+		Iterator<Chain> lru = chains.values().iterator();
+		while (chains.size() > maxTaxis || numSegments > maxSegments)
+		{
+			Chain eldest = lru.next();
+			lru.remove();
+			flush(eldest, out);
+			release(eldest);
+		}
+	}
+
+	/**
+	 * flush all open chains
+	 *
+	 * @param out
+	 */
+	public void flushAll(Collector out) throws IOException, InterruptedException
+	{
+		for (Chain chain : chains.values())
+		{
+			flush(chain, out);
+			release(chain);
+		}
+		chains.clear();
+	}
+
+
+	/**
+	 * sort and pack the chain's segments and pass them to out, leaving the chain empty
+	 */
+	private void flush(Chain chain, Collector out) throws IOException, InterruptedException
+	{
+		Collections.sort(chain.segments, BY_START_TIME);
+
+		runCollector.out = out;
+		runCollector.taxi = chain.taxi;
+		runs.reset();
+		for (CabTripSegment seg : chain.segments)
+			runs.add(seg, runCollector);
+		runs.flush(runCollector);
+
+		numSegments -= chain.segments.size();
+		freeSegments.addAll(chain.segments);
+		chain.segments.clear();
+		chain.lastEnd = Long.MIN_VALUE;
+	}
+
+	private void release(Chain chain)
+	{
+		if (freeChains.size() < maxTaxis)
+			freeChains.add(chain);
+	}
+}
@@ -17,7 +17,9 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Level;
@@ -201,7 +203,7 @@ public class CabTripDist extends Configured implements Tool{
 
 	
 
-	public static class CabDistMapper extends Mapper<Object, Text, IntWritable, IntWritable> {
+	public static class CabDistMapper extends Mapper<Text, CabTripBuffer, IntWritable, IntWritable> {
 
 		private final static IntWritable one = new IntWritable(1);
 		private IntWritable Band = new IntWritable();
@@ -246,19 +248,18 @@ public class CabTripDist extends Configured implements Tool{
 		
 		
 		@Override
-		public void map(Object key, Text value, Context context)
+		public void map(Text key, CabTripBuffer value, Context context)
 			throws IOException, InterruptedException {
 			
-			// the CabTripRevenueMapper parse handles both human and epoch date formats
-			CabTripSegment[] segments = CabTripSegment.parse(value.toString().split(" ", 2)[1]);
-			if (segments == null)
+			// CabTripInputFormat handles both human and epoch date formats, and binary trips
+			if (value.isEmpty())
 				return;
 			
 			// checks for invalid speeds
 			double dist = -1d;
 			try
 			{
-				dist = CabTripSegment.getTripLength(segments, summaryOutput, false, 0d, 0d, 0d, unit);
+				dist = CabTripSegment.getTripLength(value, summaryOutput, false, 0d, 0d, 0d, unit);
 				if (dist == -1d)
 					return;
 			}
@@ -341,7 +342,7 @@ public class CabTripDist extends Configured implements Tool{
 	}
 
 	public int run(String[] args) throws Exception {
-		Configuration conf = new Configuration();
+		Configuration conf = getConf();
 
 		conf.setStrings("unit", "K");
 		conf.setDouble("sanityLimit", 200d);
@@ -359,6 +360,7 @@ public class CabTripDist extends Configured implements Tool{
 		FileOutputFormat.setOutputPath(job, new Path(outputPath));
 
 		job.setJarByClass(CabTripDist.class);
+		job.setInputFormatClass(CabTripInputFormat.class);
 		job.setMapperClass(CabDistMapper.class);
 		job.setCombinerClass(CabDistCombiner.class);
 		job.setMapOutputKeyClass(IntWritable.class);
@@ -375,6 +377,37 @@ public class CabTripDist extends Configured implements Tool{
 	
 	
 	
+	/**
+	 * second stage of CabTrips' fused mode: adds up the band counts CabTripReducer
+	 * has already found in each of its tasks, and writes them as this job would
+	 * 
+	 * @param conf - band settings as for this job
+	 * @param input - SequenceFiles of band number and count
+	 * @param output
+	 */
+	static Job createSumJob(Configuration conf, Path input, Path output) throws IOException
+	{
+		Job job = Job.getInstance(conf, "Cab trip length distribution sum");
+		FileInputFormat.addInputPath(job, input);
+		FileOutputFormat.setOutputPath(job, output);
+		job.getConfiguration().set(TextOutputFormat.SEPERATOR, "\t");
+
+		job.setJarByClass(CabTripDist.class);
+		job.setInputFormatClass(SequenceFileInputFormat.class);
+		job.setOutputFormatClass(TextOutputFormat.class);
+		job.setMapperClass(Mapper.class);
+		job.setCombinerClass(CabDistCombiner.class);
+		job.setMapOutputKeyClass(IntWritable.class);
+		job.setMapOutputValueClass(IntWritable.class);
+
+		job.setReducerClass(CabDistReducer.class);
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(IntWritable.class);
+		job.setNumReduceTasks(1);
+		return job;
+	}
+
+
 	/**
 	* The main driver for word count map/reduce program.
 	* Invoke this method to submit the map/reduce job.
@@ -0,0 +1,36 @@
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+/**
+ * reads CabTrips output, text or binary, as a taxi id and a decoded CabTripBuffer for
+ * CabTripRevenue and CabTripDist; see CabTripRecordReader
+ *
+ * SequenceFiles split at their sync markers; text splits and compressed input are
+ * handled as for TextInputFormat
+ */
+public class CabTripInputFormat extends FileInputFormat<Text, CabTripBuffer> {
+
+	@Override
+	public RecordReader<Text, CabTripBuffer> createRecordReader(InputSplit split,
+			TaskAttemptContext context)
+	{
+		return new CabTripRecordReader();
+	}
+
+	@Override
+	protected boolean isSplitable(JobContext context, Path file)
+	{
+		CompressionCodec codec = new CompressionCodecFactory(context.getConfiguration()).getCodec(file);
+		if (codec == null)
+			return true;
+		return codec instanceof SplittableCompressionCodec;
+	}
+}
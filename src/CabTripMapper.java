@@ -1,18 +1,11 @@
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.TimeZone;
-
-import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.math3.stat.descriptive.moment.Mean;
-import org.apache.commons.math3.stat.descriptive.moment.Variance;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Mapper;
@@ -20,17 +13,38 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 public class CabTripMapper 
-	extends Mapper<Object, Text, CabIDTimestamp, CabTripSegment> {
+	extends Mapper<IntWritable, CabTripSegment, CabIDTimestamp, CabTripSegment> {
 
 
 	private static Logger theLogger = Logger.getLogger(CabTripMapper.class);
-	private Text taxi_id = new Text();
 	private CabIDTimestamp vehicleTs = new CabIDTimestamp();
-	private ArrayList<Double> latitudeSamples = new ArrayList<Double>(); 
-	private ArrayList<Double> longitudeSamples = new ArrayList<Double>();
-	private long sampleCouter = 0;
-	protected static DateFormat formatter = null; 
-	private final static int SAMPLE_FREQUEBCY = 1000;
+	private RunningMoments latitudeMoments = new RunningMoments();
+	private RunningMoments longitudeMoments = new RunningMoments();
+
+	// pre-assemble segments of up to this many taxis into partial trips (0 = off)
+	public final static String ASSEMBLE_TAXIS = "CabTripMapper.assembleTaxis";
+	// most segments held while pre-assembling
+	public final static String ASSEMBLE_SEGMENTS = "CabTripMapper.assembleSegments";
+	// gap in seconds which ends a partial trip
+	public final static String ASSEMBLE_GAP = "CabTripMapper.assembleGap";
+
+	private CabTripChainBuffer chains = null;
+	private ChainCollector chainCollector = new ChainCollector();
+
+
+	/**
+	 * writes runs of pre-assembled partial trips
+	 */
+	private class ChainCollector implements CabTripChainBuffer.Collector {
+		Context context;
+
+		@Override
+		public void collect(int taxi, CabTripSegment run) throws IOException, InterruptedException {
+			vehicleTs.setvehicleID(taxi);
+			vehicleTs.settimestamp(run.getStart_timestamp().get());
+			context.write(vehicleTs, run);
+		}
+	}
 	
 
 	@Override
@@ -42,165 +56,149 @@ public class CabTripMapper
 
 		InputSplit is = context.getInputSplit();
 		theLogger.info("M: splitId["+is.toString()+"]");
+
+		Configuration conf = context.getConfiguration();
+		int maxTaxis = conf.getInt(ASSEMBLE_TAXIS, 0);
+		if (maxTaxis > 0)
+		{
+			chains = new CabTripChainBuffer(maxTaxis, conf.getInt(ASSEMBLE_SEGMENTS, 100000),
+					conf.getLong(ASSEMBLE_GAP, 300L));
+			chainCollector.context = context;
+		}
 	}
 	
-	public void map(Object key, Text value, Context context) 
+	public void map(IntWritable key, CabTripSegment value, Context context) 
 			throws IOException, 
 			InterruptedException 
 	{
-		// <taxi-id>, <start date>, <start pos (lat)>, <start pos (long)>, <start status> . . .
-		// . . . <end date> <end pos (lat)> <end pos (long)> <end status>
-		String[] tokens = value.toString().replace("'", "").trim().split(",");
-		
-		// discard records with too few fields
-		if (tokens.length < 9)
+		// records arrive already decoded by GpsSegmentRecordReader
+		if (!isUseful(value))
 			return;
 
-		// keep only useful records
-		if (!((tokens[4].equals("E") && tokens[8].equals("M")) ||
-			  (tokens[4].equals("M") && tokens[8].equals("M")) ||
-			  (tokens[4].equals("M") && tokens[8].equals("E"))))
-			return;
-		
+		latitudeMoments.add(value.getStart_lat().get());
+		latitudeMoments.add(value.getEnd_lat().get());
+		longitudeMoments.add(value.getStart_long().get());
+		longitudeMoments.add(value.getEnd_long().get());
 
-		taxi_id.set(tokens[0]);
-		
-		
-		// parse latitude/longitude values first; gives the opportunity to set timezone
-		double start_lat = 0d;		// latitude at segment start
-		double start_long = 0d;		// longitude at segment end
-		double end_lat = 0d;		// latitude at segment end
-		double end_long= 0d;		// longitude at segment end
-		try {
-			start_lat = Double.parseDouble(tokens[2]);
-			start_long = Double.parseDouble(tokens[3]);
-			end_lat = Double.parseDouble(tokens[6]);
-			end_long = Double.parseDouble(tokens[7]);
-			
-			// fail if the lat/long is outside permitted range
-			if (Math.abs(start_lat) > 90d || Math.abs(start_long) > 180d || 
-				Math.abs(end_lat) > 90d || Math.abs(end_long) > 180d)
-				return;
-		} catch (NumberFormatException e) {
-			//e.printStackTrace();
-			//System.out.println("Bad coordinates(s): "+ value.toString());
-			return;
-		}
-		
-		// reject segments with the same start/end time or same start/end GPS
-		if ((start_lat == end_lat && start_long == end_long) || tokens[1].equals(tokens[5]))
-			return;
-		
-		// create date parser if needed
-		if (formatter == null)
+
+		if (chains != null)
 		{
-			formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-			
-			// get timezone from lat/long
-			String tz = TimezoneMapper.latLngToTimezoneString(start_lat, start_long);
-			
-			// save timezone string
-			Configuration conf = context.getConfiguration();
-			conf.set("tz", tz);
-			
-			theLogger.info("CabTripMapper: Using timezone ["+tz+"] from coordinates ("+Double.toString(start_lat)+","+Double.toString(start_long)+")");
-
-			// create timezone and assign to formatter
-			TimeZone timeZone = TimeZone.getTimeZone(tz);
-			formatter.setTimeZone(timeZone);
-		}
-		
-		// parse string timestamps into epoch time, and latitude/longitude strings into longs
-		long start_epoch = -1l;
-		long end_epoch = -1l;
-		try {
-			// parse dates and reject if they are invalid
-			start_epoch = formatter.parse(tokens[1]).getTime()/1000;
-			end_epoch = formatter.parse(tokens[5]).getTime()/1000;
-			if (!(end_epoch > start_epoch))
-				return;
-		} catch (ParseException e) {
-			theLogger.error( e.getMessage(), e );
+			chains.add(key.get(), value, chainCollector);
 			return;
 		}
-		
-		if (sampleCouter++ % SAMPLE_FREQUEBCY == 0L)
-		{
-			latitudeSamples.add(start_lat);
-			latitudeSamples.add(end_lat);
-			longitudeSamples.add(start_long);
-			longitudeSamples.add(end_long);
-		}
-
 
-		CabTripSegment seg = new CabTripSegment(tokens[4], start_epoch, start_lat, start_long, 
-				tokens[8], end_epoch, end_lat, end_long);
+		//System.out.println(key.toString()+","+value.toString());
+		vehicleTs.setvehicleID(key.get());
+		vehicleTs.settimestamp(value.getStart_timestamp().get());
 		
-		//System.out.println(taxi_id.toString()+","+seg.toString());
-		vehicleTs.setvehicleID(taxi_id);
-		vehicleTs.settimestamp(start_epoch);
-		
-		context.write(vehicleTs, seg);
+		context.write(vehicleTs, value);
 	}
 
 	
+	/**
+	 * @param value
+	 * @return false for segments which can play no part in a trip
+	 */
+	public static boolean isUseful(CabTripSegment value)
+	{
+		Text start_status = value.getStart_status();
+		Text end_status = value.getEnd_status();
+
+		// keep only useful records
+		if (!((isStatus(start_status, 'E') && isStatus(end_status, 'M')) ||
+			  (isStatus(start_status, 'M') && isStatus(end_status, 'M')) ||
+			  (isStatus(start_status, 'M') && isStatus(end_status, 'E'))))
+			return false;
+
+		// reject segments with the same start/end GPS
+		if (value.getStart_lat().get() == value.getEnd_lat().get()
+			&& value.getStart_long().get() == value.getEnd_long().get())
+			return false;
+
+		// reject segments with the same start/end time, or ending before they start
+		return value.getEnd_timestamp().get() > value.getStart_timestamp().get();
+	}
+
+	/**
+	 * @return true if status is the single character c
+	 */
+	private static boolean isStatus(Text status, char c)
+	{
+		return status.getLength() == 1 && status.getBytes()[0] == (byte) c;
+	}
+
+	/**
+	 * write this task's statistics to its own file in the job's geodata directory, where
+	 * CabTripReducer merges them; the file is renamed into place once complete, so
+	 * reducers never see partial files from failed attempts. Under MultithreadedMapper
+	 * each thread has its own mapper, so the file name is the task attempt plus thread
+	 *
+	 * @param context
+	 * @param stats
+	 * @throws IOException
+	 */
+	private void writeGeoData(Context context, String stats) throws IOException
+	{
+		Configuration conf = context.getConfiguration();
+		String geoDataDir = conf.get(CabTripReducer.GEO_DATA_DIR);
+		if (geoDataDir == null)
+			return;
+
+		Path dir = new Path(geoDataDir);
+		String name = context.getTaskAttemptID().toString()+"."+Thread.currentThread().getId();
+		Path tmp = new Path(dir, "_"+name);
+		Path pt = new Path(dir, name);
+
+		FileSystem fs = dir.getFileSystem(conf);
+		BufferedWriter geoFile = new BufferedWriter(new OutputStreamWriter(fs.create(tmp, true)));
+		try {
+			geoFile.write(stats);
+		} finally {
+			geoFile.close();
+		}
+		if (!fs.rename(tmp, pt))
+			throw new IOException("Failed to rename "+tmp+" to "+pt);
+	}
+
 	@Override
 	protected void cleanup(Context context)
 			throws IOException, 
 			InterruptedException 
 	{
+		if (chains != null)
+			chains.flushAll(chainCollector);
+
 		super.cleanup(context);
 		
-		// calculate mean and variance of latitude and longitude
-		Mean mean = new Mean();
-		Variance var = new Variance();
-		
-		double lat[] = ArrayUtils.toPrimitive(latitudeSamples
-				.toArray(new Double[latitudeSamples.size()]));
-		
-		double lng[] = ArrayUtils.toPrimitive(longitudeSamples
-				.toArray(new Double[longitudeSamples.size()]));
-
-		// write out file of statistics
+		// write out file of statistics, unless the reducers have been given bounds
 		Configuration conf = context.getConfiguration();
-		conf.addResource(new Path("/HADOOP_HOME/conf/core-site.xml"));
-		conf.addResource(new Path("/HADOOP_HOME/conf/hdfs-site.xml"));
-		String geoDataFilePath = conf.get("geoDataFilePath", "hdfs:/tmp/cabtrips-geodata.csv");
-
-        try{
-            Path pt=new Path(geoDataFilePath);
-            FileSystem fs = FileSystem.get(conf);
-			org.apache.hadoop.fs.FSDataOutputStream stream;
-			if ( fs.exists( pt )) 
-				stream = fs.append(pt);
-			else
-				stream = fs.create(pt, true);
-            BufferedWriter latFile=new BufferedWriter(new OutputStreamWriter(stream));
-                                       // TO append data to a file, use fs.append(Path f)
-            StringBuffer line = new StringBuffer();
-            line.append(latitudeSamples.size());
-            line.append(",");
-            line.append(mean.evaluate(lat));
-            line.append(",");
-            line.append(mean.evaluate(lng));
-            line.append(",");
-            line.append(var.evaluate(lat));
-            line.append(",");
-            line.append(var.evaluate(lng));
-            line.append("\n");
-            
-            latFile.write(line.toString());
-            latFile.close();
-	    }catch(Exception e){
-	            System.out.println("Exception: "+e.toString());
-	    }
-
-        theLogger.info("geo.sample.size = "+ lat.length);
-
-        theLogger.info("latitude.mean = "+ mean.evaluate(lat));
-        theLogger.info("longitude.mean = "+ mean.evaluate(lng));
-
-        theLogger.info("latitude.variance = "+ var.evaluate(lat));
-        theLogger.info("longitude.variance = "+ var.evaluate(lng));
+		if (conf.get(CabTripReducer.GEO_BOUNDS) == null && latitudeMoments.getCount() > 0)
+		{
+			StringBuffer line = new StringBuffer();
+			line.append(latitudeMoments.getCount());
+			line.append(",");
+			line.append(latitudeMoments.getMean());
+			line.append(",");
+			line.append(longitudeMoments.getMean());
+			line.append(",");
+			line.append(latitudeMoments.getVariance());
+			line.append(",");
+			line.append(longitudeMoments.getVariance());
+			line.append("\n");
+
+			try {
+				writeGeoData(context, line.toString());
+			} catch (IOException e) {
+				theLogger.error("Failed to write geodata stats: "+e.toString());
+			}
+		}
+
+        theLogger.info("geo.sample.size = "+ latitudeMoments.getCount());
+
+        theLogger.info("latitude.mean = "+ latitudeMoments.getMean());
+        theLogger.info("longitude.mean = "+ longitudeMoments.getMean());
+
+        theLogger.info("latitude.variance = "+ latitudeMoments.getVariance());
+        theLogger.info("longitude.variance = "+ longitudeMoments.getVariance());
 	}
 }
@@ -0,0 +1,159 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * writes the trips of CabTripReducer as lines of text, laid out as before
+ *
+ * 		<taxi><sep><segment>[;<segment>...]			(summaryOutput false)
+ * 		<taxi><sep><first start> <last end>		(summaryOutput true)
+ *
+ * where each segment or waypoint is "<time> <lat> <long>"; each line is built in a
+ * byte buffer kept by the writer, so long trips are not copied through Strings and Text
+ *
+ * the separator is TextOutputFormat's, and output is compressed as for TextOutputFormat
+ */
+public class CabTripOutputFormat extends FileOutputFormat<Text, CabTripBuffer> {
+
+	private static Logger theLogger = Logger.getLogger(CabTripOutputFormat.class);
+
+	// returns output with only start and end GPS markers
+	public final static String SUMMARY_OUTPUT = "summaryOutput";
+	// output timestamps as epoch time rather than as yyyy-MM-ddTHH:mm:ssZ
+	public final static String EPOCH_TIME = "epochTime";
+	// decimal places shown for coordinates; -1 = as read, i.e. the shortest form
+	public final static String COORDINATE_DECIMALS = "CabTripOutputFormat.coordinateDecimals";
+
+
+	/**
+	 * formats and writes trips
+	 */
+	protected static class TripRecordWriter extends RecordWriter<Text, CabTripBuffer> {
+		private DataOutputStream out;
+		private byte[] separator;
+		private boolean summaryOutput;
+		private boolean epochTime;
+		private int coordinateDecimals;
+
+		// output date stamps with timezone in format [offset][hh:mm]
+		// e.g. 2010-12-23 09:12:09 -05:00 == EST
+		private GpsTimestampFormatter formatter = null;
+
+		private TextOutputBuffer line = new TextOutputBuffer();
+
+		public TripRecordWriter(DataOutputStream out, Configuration conf)
+		{
+			this.out = out;
+			this.separator = conf.get(TextOutputFormat.SEPERATOR, "\t").getBytes(StandardCharsets.UTF_8);
+			this.summaryOutput = conf.getBoolean(SUMMARY_OUTPUT, true);
+			this.epochTime = conf.getBoolean(EPOCH_TIME, true);
+			this.coordinateDecimals = conf.getInt(COORDINATE_DECIMALS, -1);
+		}
+
+		@Override
+		public synchronized void write(Text taxi, CabTripBuffer trip) throws IOException
+		{
+			if (trip == null || trip.isEmpty())
+				return;
+
+			// create date formatter if needed
+			if (!epochTime && formatter == null)
+			{
+				// get timezone from lat/long
+				String tz = TimezoneMapper.latLngToTimezoneString(trip.getStart_lat(0), trip.getStart_long(0));
+
+				theLogger.info("CabTripOutputFormat: Using timezone ["+tz+"]");
+
+				formatter = new GpsTimestampFormatter(TimeZone.getTimeZone(tz));
+			}
+
+			line.reset();
+			line.append(taxi);
+			line.append(separator, 0, separator.length);
+
+			int last = trip.size()-1;
+			if (!summaryOutput)
+			{
+				// all segments are output, separated by semicolons
+				for (int i = 0; i <= last; i++)
+				{
+					if (i > 0)
+						line.append((byte) ';');
+					appendWaypoint(trip.getStart_timestamp(i), trip.getStart_lat(i), trip.getStart_long(i));
+					line.append((byte) ' ');
+					appendWaypoint(trip.getEnd_timestamp(i), trip.getEnd_lat(i), trip.getEnd_long(i));
+				}
+			}
+			else
+			{
+				// output only details of first and last waypoint
+				// 9 1267402225 37.79076 -122.40255 1267402400 37.78538 -122.40024
+				appendWaypoint(trip.getStart_timestamp(0), trip.getStart_lat(0), trip.getStart_long(0));
+				line.append((byte) ' ');
+				// formatted dates have always shown the start of the last segment
+				appendWaypoint(epochTime ? trip.getEnd_timestamp(last) : trip.getStart_timestamp(last),
+						trip.getEnd_lat(last), trip.getEnd_long(last));
+			}
+			line.append((byte) '\n');
+
+			line.writeTo(out);
+		}
+
+		private void appendWaypoint(long timestamp, double lat, double lng)
+		{
+			if (epochTime)
+				line.append(timestamp);
+			else
+				formatter.format(timestamp, line);
+			line.append((byte) ' ');
+			line.append(lat, coordinateDecimals);
+			line.append((byte) ' ');
+			line.append(lng, coordinateDecimals);
+		}
+
+		@Override
+		public synchronized void close(TaskAttemptContext context) throws IOException
+		{
+			out.close();
+		}
+	}
+
+
+	@Override
+	public RecordWriter<Text, CabTripBuffer> getRecordWriter(TaskAttemptContext job)
+			throws IOException, InterruptedException
+	{
+		Configuration conf = job.getConfiguration();
+
+		CompressionCodec codec = null;
+		String extension = "";
+		if (getCompressOutput(job))
+		{
+			Class<? extends CompressionCodec> codecClass = getOutputCompressorClass(job, GzipCodec.class);
+			codec = ReflectionUtils.newInstance(codecClass, conf);
+			extension = codec.getDefaultExtension();
+		}
+
+		Path file = getDefaultWorkFile(job, extension);
+		FileSystem fs = file.getFileSystem(conf);
+		FSDataOutputStream fileOut = fs.create(file, false);
+		if (codec == null)
+			return new TripRecordWriter(fileOut, conf);
+		return new TripRecordWriter(new DataOutputStream(codec.createOutputStream(fileOut)), conf);
+	}
+}
@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.KeyValueLineRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileRecordReader;
+
+/**
+ * reads the trips of a CabTrips output file as a taxi id and a CabTripBuffer, whichever
+ * form it was written in: SequenceFiles of CabTripSequenceOutputFormat are read as they
+ * are, and lines of CabTripOutputFormat are parsed by CabTripSegment.parse; malformed
+ * lines are skipped
+ *
+ * the taxi id of a line ends at the first KeyValueLineRecordReader separator, by default
+ * the space CabTrips writes
+ */
+public class CabTripRecordReader extends RecordReader<Text, CabTripBuffer> {
+
+	private final static byte[] SEQUENCE_FILE_MAGIC = { 'S', 'E', 'Q' };
+
+	// one of these is used, depending on the file
+	private SequenceFileRecordReader<Text, CabTripBuffer> sequenceReader = null;
+	private LineRecordReader lineReader = null;
+
+	private byte separator;
+	private Text taxi = new Text();
+	private CabTripBuffer trip = new CabTripBuffer();
+
+
+	@Override
+	public void initialize(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException
+	{
+		Configuration conf = context.getConfiguration();
+		Path file = ((FileSplit) split).getPath();
+
+		if (new CompressionCodecFactory(conf).getCodec(file) == null && isSequenceFile(file, conf))
+		{
+			sequenceReader = new SequenceFileRecordReader<Text, CabTripBuffer>();
+			sequenceReader.initialize(split, context);
+		}
+		else
+		{
+			separator = (byte) conf.get(KeyValueLineRecordReader.KEY_VALUE_SEPERATOR, " ").charAt(0);
+			lineReader = new LineRecordReader();
+			lineReader.initialize(split, context);
+		}
+	}
+
+	/**
+	 * @return true if file starts with the SequenceFile header
+	 */
+	private static boolean isSequenceFile(Path file, Configuration conf) throws IOException
+	{
+		FileSystem fs = file.getFileSystem(conf);
+		InputStream in = fs.open(file);
+		try {
+			for (byte b : SEQUENCE_FILE_MAGIC)
+			{
+				if (in.read() != b)
+					return false;
+			}
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+
+	@Override
+	public boolean nextKeyValue() throws IOException, InterruptedException
+	{
+		if (sequenceReader != null)
+			return sequenceReader.nextKeyValue();
+
+		while (lineReader.nextKeyValue())
+		{
+			Text line = lineReader.getCurrentValue();
+			byte[] b = line.getBytes();
+			int len = line.getLength();
+			int pos = 0;
+			while (pos < len && b[pos] != separator)
+				pos++;
+			if (pos == len)
+				continue;
+
+			if (CabTripSegment.parse(b, pos + 1, len - pos - 1, trip))
+			{
+				taxi.set(b, 0, pos);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Text getCurrentKey() throws IOException, InterruptedException
+	{
+		if (sequenceReader != null)
+			return sequenceReader.getCurrentKey();
+		return taxi;
+	}
+
+	@Override
+	public CabTripBuffer getCurrentValue() throws IOException, InterruptedException
+	{
+		if (sequenceReader != null)
+			return sequenceReader.getCurrentValue();
+		return trip;
+	}
+
+	@Override
+	public float getProgress() throws IOException, InterruptedException
+	{
+		if (sequenceReader != null)
+			return sequenceReader.getProgress();
+		return lineReader.getProgress();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (sequenceReader != null)
+			sequenceReader.close();
+		if (lineReader != null)
+			lineReader.close();
+	}
+}
@@ -1,19 +1,20 @@
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.TimeZone;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
@@ -22,30 +23,24 @@ import org.apache.log4j.Logger;
  *
  */
 public class CabTripReducer
-	extends Reducer<CabIDTimestamp, CabTripSegment, Text, Text> {
+	extends Reducer<CabIDTimestamp, CabTripSegment, Text, CabTripBuffer> {
 
 	private static Logger theLogger = Logger.getLogger(CabTripReducer.class);
 
-	private Text taxi;
-	private Text trip_id = new Text();
-	private Text segmentString = new Text();
+	// decimal taxi ID of the current key, for trip IDs and output
+	private Text taxi = new Text();
+	private byte[] digits = new byte[10];
 	
-	// output date stamps with timezone in format [offset][hh:mm] 
-	// e.g. 2010-12-23 09:12:09 -05:00 == EST
-	protected static DateFormat formatter = null;
+	protected long maxTripLength = -1;
 	
-	// returns output with only start and end GPS markers
-	protected static boolean summaryOutput = true;
-	
-	// output timestamps as epoch time; alternative is the following format:
-	// YYYY-MM-DDTHH:mm:ssZ
-	// e.g. 2012-01-03T10:28+0300
-	//
-	protected static boolean epochTime = true;
+	private final static double NUM_DEVIATIONS = 20d;
 	
-	protected static long maxTripLength = -1;
+	// directory holding a geodata stats file from each map task
+	public final static String GEO_DATA_DIR = "geoDataDir";
 	
-	private final static double NUM_DEVIATIONS = 20d;
+	// bounds for rejecting trips as "minLat,maxLat,minLong,maxLong"; when set, the
+	// geodata stats are not used
+	public final static String GEO_BOUNDS = "geoBounds";
 	
 	// used for rejecting trips
 	protected double minLatitude = -1;
@@ -54,50 +49,129 @@ public class CabTripReducer
 	protected double maxLongitude = -1;
 
 	
+	// segment status transitions, as returned by CabTripSegment.getStatusCodes
+	private final static int EMPTY_MOVING = CabTripSegment.CODE_EMPTY | CabTripSegment.CODE_MOVING << CabTripSegment.END_STATUS_SHIFT;
+	private final static int MOVING_MOVING = CabTripSegment.CODE_MOVING | CabTripSegment.CODE_MOVING << CabTripSegment.END_STATUS_SHIFT;
+	private final static int MOVING_EMPTY = CabTripSegment.CODE_MOVING | CabTripSegment.CODE_EMPTY << CabTripSegment.END_STATUS_SHIFT;
+	private final static int EMPTY_EMPTY = CabTripSegment.CODE_EMPTY | CabTripSegment.CODE_EMPTY << CabTripSegment.END_STATUS_SHIFT;
+
+	// trip segmentation states
+	private final static int STATE_IDLE = 0;		// between trips
+	private final static int STATE_IN_TRIP = 1;		// meter running since the last accepted segment
+
 	/**
-	 * records current trip ID for each taxi encountered in input
+	 * segments of the current taxi's trip; reduce() sees a single taxi, so this is
+	 * cleared at the start of every group
 	 */
-	protected HashMap<Text, Integer> tripCounter = new HashMap<Text, Integer>();
-	protected HashMap<Text, Boolean> inTrip = new HashMap<Text, Boolean>();
-	protected HashMap<Text, ArrayList<CabTripSegment>> segments = new HashMap<Text, ArrayList<CabTripSegment>>();
+	protected CabTripBuffer trip = new CabTripBuffer();
+	
+	// fused mode: as each trip is emitted, cost it as CabTripRevenue would and/or count
+	// its length band as CabTripDist would, so that neither needs to read this job's
+	// output; results go to these named outputs, under hidden directories of the
+	// job's output
+	public final static String REVENUE_OUTPUT = "revenue";
+	public final static String BANDS_OUTPUT = "bands";
+	public final static String REVENUE_DIR = "_revenue";
+	public final static String BANDS_DIR = "_bands";
+	public final static String FUSED_REVENUE = "CabTripReducer.revenue";
+	public final static String FUSED_BANDS = "CabTripReducer.bands";
+	// use straight line distance, as CabTripRevenue -s and CabTripDist -s
+	public final static String STRAIGHT_LINE = "CabTripReducer.straightLine";
+	
+	private MultipleOutputs<Text, CabTripBuffer> fusedOutputs = null;
+	private boolean straightLine = false;
+	private boolean summaryOutput = false;
+	private CabTripBuffer summary = new CabTripBuffer();
+	
+	private CabTripRevenueCalculator calculator = null;
+	private CabTripRevenueRecord revenueKey = new CabTripRevenueRecord();
+	private Text revenueValue = new Text();
+	
+	// trips per length band, written out at the end of the task
+	private int[] bandCounts = null;
+	private double[] distBandLimits;
+	private double sanityLimit;
 
 	/**
-	 * calculate pooled variance
+	 * bounds for rejecting trips, NUM_DEVIATIONS standard deviations either side of the
+	 * mean; the whole globe if there are no samples
 	 * 
-	 * @param variances
-	 * @param sampleSizes
-	 * @return
+	 * @param latitude
+	 * @param longitude
+	 * @return minLat, maxLat, minLong, maxLong
 	 */
-	private double getPooledVariance(ArrayList<Double> variances, ArrayList<Double> sampleSizes)
+	public static double[] getBounds(RunningMoments latitude, RunningMoments longitude)
 	{
-		double numerator = 0d;
-		double denominator = 0d;
-		Iterator<Double> var = variances.iterator();
-		Iterator<Double> n = sampleSizes.iterator();
-		while (var.hasNext() && n.hasNext())
-		{
-			double nVal = n.next();
-			numerator += var.next() * nVal;
-			denominator += (nVal - 1);
-		}
-		return numerator/denominator;
+		if (latitude.getCount() == 0)
+			return new double[] { -90d, 90d, -180d, 180d };
+
+		double latRange = NUM_DEVIATIONS * Math.sqrt(latitude.getVariance());
+		double lngRange = NUM_DEVIATIONS * Math.sqrt(longitude.getVariance());
+		return new double[] {
+			latitude.getMean() - latRange, latitude.getMean() + latRange,
+			longitude.getMean() - lngRange, longitude.getMean() + lngRange
+		};
 	}
 	
 	/**
-	 * @param means
-	 * @return
+	 * read the stats written by CabTripMapper, one file per map task; where a task
+	 * had more than one successful attempt, only one of them is counted
 	 */
-	private double getPooledMean(ArrayList<Double> means)
+	private void readGeoData(Configuration conf, RunningMoments latitude, RunningMoments longitude)
 	{
-		double out = 0d;
-		if (means.size() == 0)
-			return 0d;
-		
-		for (Double mean : means)
+		String geoDataDir = conf.get(GEO_DATA_DIR);
+		if (geoDataDir == null)
+			return;
+
+		try {
+			Path dir = new Path(geoDataDir);
+			FileSystem fs = dir.getFileSystem(conf);
+
+			// skip files still being written
+			PathFilter complete = new PathFilter() {
+				@Override
+				public boolean accept(Path path) {
+					return !path.getName().startsWith("_");
+				}
+			};
+
+			// files are named <attempt>.<thread>; take every thread's file from one
+			// attempt of each task
+			HashMap<TaskID, TaskAttemptID> attempts = new HashMap<TaskID, TaskAttemptID>();
+			for (FileStatus status : fs.listStatus(dir, complete))
+			{
+				String name = status.getPath().getName();
+				int dot = name.indexOf('.');
+				TaskAttemptID attempt = TaskAttemptID.forName(dot < 0 ? name : name.substring(0, dot));
+				TaskAttemptID chosen = attempts.get(attempt.getTaskID());
+				if (chosen == null)
+					attempts.put(attempt.getTaskID(), attempt);
+				else if (!chosen.equals(attempt))
+					continue;
+
+				BufferedReader br=new BufferedReader(new InputStreamReader(fs.open(status.getPath())));
+				try {
+					String line, fields[];
+					line=br.readLine();
+					while (line != null)
+					{
+						line = line.trim();
+						fields = line.split(",");
+						long n = Long.parseLong(fields[0]);
+						latitude.merge(new RunningMoments(n, Double.parseDouble(fields[1]), Double.parseDouble(fields[3])));
+						longitude.merge(new RunningMoments(n, Double.parseDouble(fields[2]), Double.parseDouble(fields[4])));
+
+						line=br.readLine();
+					}
+				} finally {
+					br.close();
+				}
+			}
+		}
+		catch (Exception e)
 		{
-			out += mean;
-		}		
-		return out/means.size();
+			theLogger.error("Failed to read geodata stats", e);
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -111,209 +185,85 @@ public class CabTripReducer
 		theLogger.setLevel(Level.INFO);
 		Configuration conf = context.getConfiguration();
 
-		ArrayList<Double> sampleSizes = new ArrayList<Double>();
-		ArrayList<Double> sampleLatMeans = new ArrayList<Double>();
-		ArrayList<Double> sampleLatVariances = new ArrayList<Double>();
-		ArrayList<Double> sampleLngMeans = new ArrayList<Double>();
-		ArrayList<Double> sampleLngVariances = new ArrayList<Double>();
-
-		// process geodata stats file 
-		String geoDataFilePath = conf.get("geoDataFilePath", "hdfs:/tmp/cabtrips-geodata.csv");
-
-		try {
-			Path pt=new Path(geoDataFilePath);
-			FileSystem fs = FileSystem.get(conf);
-			BufferedReader br=new BufferedReader(new InputStreamReader(fs.open(pt)));
-			String line, fields[];
-			line=br.readLine();
-			while (line != null)
-			{
-				line = line.trim();
-				fields = line.split(",");
-				sampleSizes.add(Double.parseDouble(fields[0]));
-				sampleLatMeans.add(Double.parseDouble(fields[1]));
-				sampleLngMeans.add(Double.parseDouble(fields[2]));
-				sampleLatVariances.add(Double.parseDouble(fields[3]));
-				sampleLngVariances.add(Double.parseDouble(fields[4]));
-
-				line=br.readLine();
-			}
-		}
-		catch (Exception e)
+		String bounds = conf.get(GEO_BOUNDS);
+		if (bounds != null)
 		{
-			System.out.println("Exception: "+e.toString());
-		}
-
-		// calculate pooled mean and variance
-		double latitudeMean = getPooledMean(sampleLatMeans);
-		double latitudeVariance = getPooledVariance(sampleLatVariances, sampleSizes);
-		double longitudeMean = getPooledMean(sampleLngMeans);
-		double longitudeVariance = getPooledVariance(sampleLngVariances, sampleSizes);
-		
-		if (sampleSizes.size() > 0)
-		{
-			minLatitude = latitudeMean - NUM_DEVIATIONS * Math.sqrt(latitudeVariance);
-			maxLatitude = latitudeMean + NUM_DEVIATIONS * Math.sqrt(latitudeVariance);
-			minLongitude = longitudeMean - NUM_DEVIATIONS * Math.sqrt(longitudeVariance);
-			maxLongitude = longitudeMean + NUM_DEVIATIONS * Math.sqrt(longitudeVariance);
+			String[] fields = bounds.split(",");
+			minLatitude = Double.parseDouble(fields[0]);
+			maxLatitude = Double.parseDouble(fields[1]);
+			minLongitude = Double.parseDouble(fields[2]);
+			maxLongitude = Double.parseDouble(fields[3]);
 		}
 		else
 		{
-			minLatitude = -90d;
-			maxLatitude = 90d;
-			minLongitude = -180d;
-			maxLongitude = 180d;
+			// process geodata stats files, pooling the stats of all map tasks
+			RunningMoments latitude = new RunningMoments();
+			RunningMoments longitude = new RunningMoments();
+			readGeoData(conf, latitude, longitude);
+			
+			double[] b = getBounds(latitude, longitude);
+			minLatitude = b[0];
+			maxLatitude = b[1];
+			minLongitude = b[2];
+			maxLongitude = b[3];
 		}
 		
 		theLogger.info("Lat range: ["+Double.toString(minLatitude)+", "+Double.toString(maxLatitude)+"]");
 		theLogger.info("Long range: ["+Double.toString(minLongitude)+", "+Double.toString(maxLongitude)+"]");
 
-		summaryOutput = conf.getBoolean("summaryOutput", true);
-		epochTime = conf.getBoolean("epochTime", true);
 		maxTripLength = conf.getLong("maxTripLength", -1);
-	}
-	
-	/**
-	 * @param taxi_id
-	 * @return String representation of trip ID
-	 */
-	protected String getCurrentTripID(Text taxi_id)
-	{
-		Boolean running = inTrip.get(taxi_id);
-		if (running == null || running.booleanValue() == false)
-		{
-			return null;
-		}
 		
-		Integer currTripNum = tripCounter.get(taxi_id);
-		if (currTripNum == null)
+		// fused mode
+		boolean fusedRevenue = conf.getBoolean(FUSED_REVENUE, false);
+		boolean fusedBands = conf.getBoolean(FUSED_BANDS, false);
+		if (fusedRevenue || fusedBands)
 		{
-			return null;
+			fusedOutputs = new MultipleOutputs<Text, CabTripBuffer>(context);
+			straightLine = conf.getBoolean(STRAIGHT_LINE, false);
+			summaryOutput = conf.getBoolean(CabTripOutputFormat.SUMMARY_OUTPUT, true);
 		}
-		else
+		if (fusedRevenue)
+			calculator = new CabTripRevenueCalculator(conf);
+		if (fusedBands)
 		{
-			return taxi_id.toString() + " " + currTripNum.toString();
+			// settings as for CabTripDist
+			double maxDist = conf.getDouble("maxDist", 100d);
+			double bandwidth = conf.getDouble("bandwidth", 1d);
+			int numBands = (int)(maxDist/bandwidth) + 1;
+			distBandLimits = CabTripDist.setBandLimits(numBands, maxDist, bandwidth);
+			sanityLimit = conf.getDouble("sanityLimit", 200d);
+			bandCounts = new int[numBands];
 		}
 	}
-
-
-	/**
-	 * add segment to current trip for taxi_id
-	 * 
-	 * @param taxi_id
-	 * @param seg
-	 */
-	protected boolean addSegment(Text taxi_id, CabTripSegment seg)
-	{
-		//theLogger.info("S+Taxi["+taxi_id.toString()+"]::["+seg.toString() + "]");
-		Boolean running = inTrip.get(taxi_id);
-
-		// create new trip for this taxi if none currently active
-		// it means we saw a sudden "M"-"M"
-		if (running == null || !running)
-		{
-			startTrip(taxi_id);
-		}
-		
-		ArrayList<CabTripSegment> segList = segments.get(taxi_id);
-		if (segList == null)
-		{
-			segList = new ArrayList<CabTripSegment>();
-			segments.put(taxi_id, segList);
-		}
-		segList.add(seg);
-		
-		return true;
-	}
 	
-	
-	/**
-	 * delete all segments from current trip
-	 * @param taxi_id
-	 */
-	protected void clearSegments(Text taxi_id, boolean running)
-	{
-		ArrayList<CabTripSegment> segList = segments.get(taxi_id);
-		if (segList != null)
-		{
-			//if (running)
-			//	theLogger.info("clearSegments("+taxi_id.toString()+"): ["+Integer.toString(segList.size())+"]");
-
-			segList.clear();
-		}
-	}
-	
-	/**
-	 * return current trip segments as an array
-	 * 
-	 * @param taxi_id
-	 * @return array of CabTripSegments, or null if no segments found
-	 */
-	protected CabTripSegment[] getSegments(Text taxi_id)
-	{
-		ArrayList<CabTripSegment> segList = segments.get(taxi_id);
-		if (segList == null || segList.size() == 0)
-		{
-			return null;
-		}
-
-		CabTripSegment[] csArray = segList.toArray(new CabTripSegment[0]);
-		return csArray;
-	}
-	
-	
-	/**
-	 * add a new trip for this taxi; fail if in the middle of an incomplete trip
-	 * 
-	 * @param taxi_id
-	 * @return true if trip start successful, false otherwise
+	/* (non-Javadoc)
+	 * @see org.apache.hadoop.mapreduce.Reducer#cleanup(org.apache.hadoop.mapreduce.Reducer.Context)
 	 */
-	protected boolean startTrip(Text taxi_id)
+	@Override
+	protected void cleanup(Context context)
+			throws IOException,
+			InterruptedException
 	{
-		Boolean running = inTrip.get(taxi_id);
+		if (fusedOutputs == null)
+			return;
 		
-		// brand new taxi on this reduce node
-		if (running == null)
+		// every band, so that the sum shows empty ones
+		if (bandCounts != null)
 		{
-			inTrip.put(taxi_id, true);
-			tripCounter.put(taxi_id, 1);
-			return true;
-		}
-
-		// trash last trip if we start a new one in the middle of it
-		Integer currTripNum = tripCounter.get(taxi_id);
-		if (running)
-		{
-			//theLogger.info("startTrip("+taxi_id.toString()+"): closing nr ["+currTripNum.toString()+"]");
-			clearSegments(taxi_id, running);
-			return false;
-		}
-		else 
-		{
-			inTrip.put(taxi_id, true);
-			if (currTripNum == null)
-				currTripNum = new Integer(0);
-			tripCounter.put(taxi_id, currTripNum+1);
-			return true;
+			IntWritable band = new IntWritable();
+			IntWritable count = new IntWritable();
+			for (int i = 0; i < bandCounts.length; i++)
+			{
+				band.set(i);
+				count.set(bandCounts[i]);
+				fusedOutputs.write(BANDS_OUTPUT, band, count, BANDS_DIR+"/part");
+			}
 		}
-	}
-
-
-	/**
-	 * mark a trip as complete; fail if not in a trip
-	 * 
-	 * @param taxi_id
-	 * @return
-	 */
-	protected boolean endTrip(Text taxi_id)
-	{
-		inTrip.put(taxi_id, false);
-		clearSegments(taxi_id, false);
-		return true;
+		fusedOutputs.close();
 	}
 	
 	/**
-	 * emits output
+	 * emits the current trip, which CabTripOutputFormat formats as it writes it out
 	 * 
 	 * @param context
 	 * @throws IOException
@@ -321,82 +271,70 @@ public class CabTripReducer
 	 */
 	private void emit(Context context) throws IOException, InterruptedException
 	{
-		// build string out of array of segments
-		CabTripSegment[] segList = getSegments(taxi);
-		if (segList == null)
+		if (trip.isEmpty())
 			return;
 		
 		// reject trips exceeding maxTripLength
-		if (maxTripLength > 0
-			&& segList[segList.length-1].getEnd_timestamp().get() 
-				- segList[0].getStart_timestamp().get() > maxTripLength)
+		if (maxTripLength > 0 && trip.getDuration() > maxTripLength)
 			return;
+
+		//theLogger.info("R:emit("+taxi.toString()+")["+Integer.toString(trip.size())+"]");
+		
+		// emit; output key is the taxi id
+		context.write(taxi, trip);
+		
+		if (fusedOutputs != null)
+			closeTrip();
+	}
 	
-		// create date parser if needed
-		if (!epochTime && formatter == null)
+	/**
+	 * fused mode: revenue and length band of the trip just emitted, found from it as
+	 * CabTripRevenue and CabTripDist would find them from this job's output
+	 */
+	private void closeTrip() throws IOException, InterruptedException
+	{
+		CabTripBuffer t = trip;
+		if (summaryOutput)
 		{
-			formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-			
-			// get timezone from lat/long
-			String tz = TimezoneMapper.latLngToTimezoneString(segList[0].getStart_lat().get(), 
-					segList[0].getStart_long().get());
-			
-			theLogger.info("CabTripReducer: Using timezone ["+tz+"]");
-
-			// create timezone and assign to formatter
-			TimeZone timeZone = TimeZone.getTimeZone(tz);
-			formatter.setTimeZone(timeZone);
+			summary.setSummary(trip);
+			t = summary;
 		}
-
-		StringBuilder s = new StringBuilder();
-		// generate giant ugly string
-		// all segments are output, separated by semicolons
-		if (!summaryOutput)
+		
+		if (calculator != null && calculator.calculate(taxi, t, straightLine, revenueKey, revenueValue))
+			fusedOutputs.write(REVENUE_OUTPUT, revenueKey, revenueValue, REVENUE_DIR+"/part");
+		
+		if (bandCounts != null)
 		{
-			for (int i=0; i < segList.length-1; i++)
-			{
-				s.append(segList[i].toString(formatter));
-				s.append(";");
+			double dist;
+			try {
+				dist = CabTripSegment.getTripLength(t, straightLine, false, 0d, 0d, 0d, "K");
+			} catch (IOException e) {
+				return;
 			}
-			s.append(segList[segList.length-1].toString(formatter));
-		}
-		else
-		{
-			// output only details of first and last waypoint
-			// 9 1267402225.0 37.79076 -122.40255 1267402400.0 37.78538 -122.40024
-			if (!epochTime)
-				s.append(CabTripSegment.getFormattedDate(segList[0].getStart_timestamp().get(), formatter));
-			else
-				s.append(segList[0].getStart_timestamp());
-			s.append(" ");
-			s.append(segList[0].getStart_lat());
-			s.append(" ");
-			s.append(segList[0].getStart_long());
-			s.append(" ");
-
-			if (!epochTime)
-				s.append(CabTripSegment.getFormattedDate(segList[segList.length-1].getStart_timestamp().get(), formatter));
-			else
-				s.append(segList[segList.length-1].getEnd_timestamp());
-			s.append(" ");
-			s.append(segList[segList.length-1].getEnd_lat());
-			s.append(" ");
-			s.append(segList[segList.length-1].getEnd_long());
+			if (dist == -1d)
+				return;
+			
+			int bandNum = CabTripDist.getBand(dist, sanityLimit, distBandLimits);
+			if (bandNum != -1)
+				bandCounts[bandNum]++;
 		}
-		
-		// get output key as (taxi_id,taxi_trip_number)
-		//trip_id.set(getCurrentTripID(taxi));
-		trip_id.set(taxi);
-		segmentString.set(s.toString());
-
-		//theLogger.info("R:emit("+trip_id.toString()+")["+Integer.toString(segList.length)+"]");
-		
-		// emit 
-		context.write(trip_id, segmentString);
-		
 	}
 	
 
+	/**
+	 * writes the decimal digits of a non-negative int into t, without creating a String
+	 */
+	private void setDigits(Text t, int value)
+	{
+		int pos = digits.length;
+		do {
+			digits[--pos] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		t.set(digits, pos, digits.length - pos);
+	}
+
+
 	/**
 	 * @param key VehicleIDTimetamp
 	 * @param values all associated CabTripSegments for this VehicleID
@@ -423,12 +361,17 @@ public class CabTripReducer
 	public void reduce(CabIDTimestamp key, Iterable<CabTripSegment> values, Context context)
 			throws IOException, InterruptedException {
 
-		taxi = key.getVehicleID();
+		setDigits(taxi, key.getVehicleID());
 		//theLogger.info("R:"+key.toString() + "::" + values.toString());
 
-		CabTripSegment last = null;
-		boolean newTrip = true;
-		for (CabTripSegment segment : values) {
+		// state of this taxi's trip segmentation; lastEnd is the end time of the last
+		// segment accepted in STATE_IN_TRIP
+		int state = STATE_IDLE;
+		long lastEnd = 0L;
+		trip.clear();
+
+		// values may hold runs of "M"-"M" segments packed by CabIDCombiner
+		for (CabTripSegment segment : CabTripRunBuilder.unpack(values)) {
 			// <start date>, <start pos (lat)>, <start pos (long)>, <start status> . . .
 			// . . . <end date> <end pos (lat)> <end pos (long)> <end status>
 			
@@ -445,74 +388,53 @@ public class CabTripReducer
 			   segment C to D
 			   9,'2010-03-15 15:09:56',37.62008,-122.39949,'M','2010-03-15 15:10:57',37.63574,-122.40345,'M'
 			*/
-			if (!newTrip && last != null 
-					&& segment.getStart_timestamp().get() < last.getEnd_timestamp().get())
+			long start = segment.getStart_timestamp().get();
+			if (state == STATE_IN_TRIP && start < lastEnd)
 			{
 				//theLogger.info("R:discard"+key.toString() + "[" + segment.toString()+"]");
 				continue;
 			}
 			
-			CabTripSegment seg = new CabTripSegment(segment);
-			
 			// reject all samples with coordinates very different from the majority
-			if (seg.getStart_lat().get() < minLatitude || seg.getStart_lat().get() > maxLatitude 
-			||  seg.getEnd_lat().get() < minLatitude || seg.getEnd_lat().get() > maxLatitude 
-			||  seg.getStart_long().get() < minLongitude || seg.getStart_long().get() > maxLongitude 
-			||  seg.getEnd_long().get() < minLongitude || seg.getEnd_long().get() > maxLongitude )
+			if (segment.getStart_lat().get() < minLatitude || segment.getStart_lat().get() > maxLatitude 
+			||  segment.getEnd_lat().get() < minLatitude || segment.getEnd_lat().get() > maxLatitude 
+			||  segment.getStart_long().get() < minLongitude || segment.getStart_long().get() > maxLongitude 
+			||  segment.getEnd_long().get() < minLongitude || segment.getEnd_long().get() > maxLongitude )
 			{
 				//theLogger.info("Rejecting "+seg);
 				continue;
 			}
 			
-			String start_status = seg.getStart_status().toString();
-			String end_status = seg.getEnd_status().toString();
-			
-			// meter started 
-			if (start_status.equals("E") && end_status.equals("M"))
+			long end = segment.getEnd_timestamp().get();
+			switch (segment.getStatusCodes())
 			{
+			// meter started 
+			case EMPTY_MOVING:
 				// reject records with negative or super-long gap between start and end timestamps
 				// 2811,'2010-02-27 23:58:57',37.75175,-122.39467,'E','2010-03-02 17:11:06',37.7832,-122.40298,'M'
 				// 2811,'2010-03-02 17:11:06',37.7832,-122.40298,'M','2010-03-02 17:12:08',37.78255,-122.4019,'M' 
-				long seg_gap = seg.getEnd_timestamp().get() - seg.getStart_timestamp().get();
-				if (seg_gap < 0L || seg_gap > 600L)
-					continue;
+				if (end - start < 0L || end - start > 600L)
+					break;
 
-				// newly started
-				if (newTrip)
+				if (state == STATE_IDLE)
 				{
-					// then start a new one
-					startTrip(taxi);
-					//addSegment(taxi, seg);
-					newTrip = false;
-					last = seg;
+					// newly started; drop anything left from an unfinished trip
+					trip.clear();
+					state = STATE_IN_TRIP;
+					lastEnd = end;
 				}
-				else
+				// if meter starts within record, and more than 10 mins passed, new trip
+				else if (lastEnd - start >= 600L)
 				{
-					if (last != null)
-					{
-						// if meter starts within record, and more than 10 mins passed, new trip
-						long gap = last.getEnd_timestamp().get() - seg.getStart_timestamp().get();
-						if (gap >= 600L)
-						{
-							// output the trip we were last working on
-							emit(context);
-							
-							// then start a new one
-							startTrip(taxi);
-							newTrip = true;
-							last = null;
-						}
-					}
-					else
-					{
-						last = seg;
-					}
-					//addSegment(taxi, seg);
+					// output the trip we were last working on, then start a new one
+					emit(context);
+					trip.clear();
+					state = STATE_IDLE;
 				}
-			}
+				break;
+
 			// meter running - on a trip
-			else if (start_status.equals("M") && end_status.equals("M"))
-			{
+			case MOVING_MOVING:
 				/*
 				meter stop/start may be missing, in which case gap between last segment end
 				and start of the next will exceed ~5 minutes
@@ -520,17 +442,14 @@ public class CabTripReducer
 				2008-06-09T13:51:02-0700 37.77548 -122.42626 2008-06-09T13:51:58-0700 37.77509 -122.42952
 				second sample represents a new trip
 				*/
-				if (last != null
-					&& seg.getStart_timestamp().get() - last.getEnd_timestamp().get() >= 300L)
+				if (state == STATE_IN_TRIP && start - lastEnd >= 300L)
 				{
-					// output the trip we were last working on
+					// output the trip we were last working on, then start a new one
+					// with this segment
 					emit(context);
-
-					// then start a new one
-					startTrip(taxi);
-					last = null;
-					newTrip = true;
-					addSegment(taxi, seg);
+					trip.clear();
+					segment.addTo(trip);
+					state = STATE_IDLE;
 				}
 				/*
 				when gap between segment start and end > 1 hour, start new trip
@@ -538,35 +457,39 @@ public class CabTripReducer
 				114,'2010-03-16 15:21:38',37.67553,-122.38883,'M','2010-03-17 22:57:12',37.78033,-122.42369,'M'
 				second segment is more than 24 hours long, so we start a new trip
 				 */
-				else if (seg.getEnd_timestamp().get() - seg.getStart_timestamp().get() > 3600L)
+				else if (end - start > 3600L)
 				{
 					// output the trip we were last working on
 					emit(context);
-
-					// then start a new one
-					startTrip(taxi);
-					last = null;
-					newTrip = true;
+					trip.clear();
+					state = STATE_IDLE;
 				}
 				else
 				{
-					last = seg;
-					newTrip = false;
-					addSegment(taxi, seg);
+					segment.addTo(trip);
+					state = STATE_IN_TRIP;
+					lastEnd = end;
 				}
-			}
+				break;
+
+			// in the middle of a trip and suddenly meter is off
+			case EMPTY_EMPTY:
+				if (state != STATE_IDLE)
+				{
+					// emit current trip and close it
+					emit(context);
+					trip.clear();
+					state = STATE_IDLE;
+				}
+				break;
+
 			// meter stopped during record - end of trip
-			else if ( (start_status.equals("M") && end_status.equals("E")) 
-					// OR in the middle of a trip and suddenly meter is off
-					||(!newTrip && start_status.equals("E") && end_status.equals("E")))
-			{
-				//addSegment(taxi, seg);
-				
+			case MOVING_EMPTY:
 				// emit current trip and close it
 				emit(context);
-				endTrip(taxi);
-				newTrip = true;
-				last = null;
+				trip.clear();
+				state = STATE_IDLE;
+				break;
 			}
 		}
 	}	
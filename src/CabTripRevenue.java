@@ -1,3 +1,9 @@
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.util.Tool;
 import org.apache.commons.cli.BasicParser;
@@ -7,13 +13,21 @@ import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.KeyValueTextInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -33,14 +47,14 @@ public class CabTripRevenue extends Configured implements Tool {
 	
 	// true - use distance between start and end points of trip to calculate revenue
 	// false - use accumulated segment distance to calculate trip length and revenue
-	protected static boolean summaryOutput = false;
+	protected boolean summaryOutput = false;
 	
 	// output timestamps as epoch time; alternative is the following format:
 	//
 	// YYYY-MM-DDTHH:mm:ssZ
 	// e.g. 2012-01-03T10:28+0300
 	//
-	protected static boolean epochTime = true;	
+	protected boolean epochTime = true;	
 	
 	// by default cost calculator finds cost of all trips; 
 	// if reference point is provided, only trips passing within provided range around
@@ -50,6 +64,21 @@ public class CabTripRevenue extends Configured implements Tool {
 	private double referenceLong = -9999d;
 	private double referenceRangeKm = -1d;	
 	
+	// fraction of input splits sampled to find start time split points for a total
+	// order over the reducers; 0 = partition by start time modulo reducers
+	private float sampleFraction = 0f;
+	private final static int SAMPLE_THREADS = 4;
+	
+	// time zones of the fleet, comma separated; by default the zone of the first trip
+	private String zones = null;
+	
+	// map threads per task; 1 = run CabTripRevenueMapper directly
+	private int mapThreads = 1;
+	
+	// decimal places shown for distance and cost; -1 = full precision
+	private int distanceDecimals = -1;
+	private int costDecimals = -1;
+	
 	
 	
 	private static Options buildOptions()
@@ -64,6 +93,10 @@ public class CabTripRevenue extends Configured implements Tool {
 		options.addOption("L", "location", true, "reference location, and range from ref (format: <string-ref>,<lat>,<long>,<range-km>)");
 		options.addOption("s", "summary", false, "use straight line distance for revenue calc");
 		options.addOption("d", "date", true, "h=human readable; e=epoch seconds since 1970-01-01 (default: e)");		
+		options.addOption("t", "threads", true, "map threads per task (default: 1)");
+		options.addOption("Z", "zones", true, "time zones for human readable dates, comma separated; trips outside them use the first (default: zone of the first trip)");
+		options.addOption("T", "total-order", true, "sample this fraction of the input splits to give reducers ranges of start times, so output is sorted across part files");
+		options.addOption("p", "precision", true, "decimal places shown for distance and cost (format: <distance>,<cost>, e.g. 3,2; default: full precision)");
 
 		return options;
 	}
@@ -165,7 +198,7 @@ public class CabTripRevenue extends Configured implements Tool {
 			
 			if (Math.abs(referenceLat) >= 90d 
 			||  Math.abs(referenceLong) > 180d 
-			||  Math.abs(referenceLong) <= 0d)
+			||  referenceRangeKm <= 0d)
 			{
 				theLogger.log(Level.INFO, "Invalid lat/long or range");
 				help(options);
@@ -188,6 +221,47 @@ public class CabTripRevenue extends Configured implements Tool {
 				help(options);
 			}		
 		}	
+		
+		if (cmd.hasOption("Z"))
+			zones = cmd.getOptionValue("Z");
+		
+		// multithreaded map
+		if (cmd.hasOption("t")) {
+			mapThreads = Integer.parseInt(cmd.getOptionValue("t"));
+			if (mapThreads <= 0)
+			{
+				theLogger.log(Level.INFO, "Invalid -t option");
+				help(options);
+			}
+		}
+		
+		// output precision
+		if (cmd.hasOption("p")) {
+			String[] bits = cmd.getOptionValue("p").split(",");
+			if (bits.length < 2)
+			{
+				theLogger.log(Level.INFO, "Invalid -p option");
+				help(options);
+			}
+			
+			distanceDecimals = Integer.parseInt(bits[0]);
+			costDecimals = Integer.parseInt(bits[1]);
+			if (distanceDecimals < 0 || costDecimals < 0)
+			{
+				theLogger.log(Level.INFO, "Invalid -p option");
+				help(options);
+			}
+		}
+		
+		// total order sampling
+		if (cmd.hasOption("T")) {
+			sampleFraction = Float.parseFloat(cmd.getOptionValue("T"));
+			if (sampleFraction <= 0f || sampleFraction > 1f)
+			{
+				theLogger.log(Level.INFO, "Invalid -T option");
+				help(options);
+			}
+		}
 	}
 	
 	
@@ -195,7 +269,7 @@ public class CabTripRevenue extends Configured implements Tool {
 	 * @see org.apache.hadoop.util.Tool#run(java.lang.String[])
 	 */
 	public int run(String[] args) throws Exception {
-		Configuration conf = new Configuration();
+		Configuration conf = getConf();
 		conf.set("mapreduce.input.keyvaluelinerecordreader.key.value.separator", " ");
         conf.set("mapreduce.output.key.field.separator", " ");
         conf.set("mapreduce.textoutputformat.separator", " "); 
@@ -219,6 +293,8 @@ public class CabTripRevenue extends Configured implements Tool {
 		conf.setDouble("taxi_charge_per_unit_dist", chargePerKm);
 		conf.setBoolean("CabTripRevenue.summaryOutput", summaryOutput);
 		conf.setBoolean("CabTripRevenue.epochTime", epochTime);
+		conf.setInt(CabTripRevenueCalculator.DISTANCE_DECIMALS, distanceDecimals);
+		conf.setInt(CabTripRevenueCalculator.COST_DECIMALS, costDecimals);
 		
 		
 		// create Job *after* configuration is complete
@@ -232,10 +308,29 @@ public class CabTripRevenue extends Configured implements Tool {
 			job.setNumReduceTasks(numReducers);
 		}
 
+		// resolve time zones once for the whole job
+		if (zones == null)
+			zones = getFirstTripZone(job);
+		job.getConfiguration().set(CabTripRevenueRecord.ZONES, zones);
+		theLogger.info("Using timezones ["+zones+"]");
+
+		// scratch files for the job
+		FileSystem fs = FileSystem.get(conf);
+		Path workDir = fs.makeQualified(new Path(conf.get("hadoop.tmp.dir"), "cabtriprevenue-"+System.currentTimeMillis()));
+
+		// split start times evenly over the reducers
+		if (sampleFraction > 0f && numReducers > 1)
+		{
+			Path splitPoints = new Path(workDir, "split-points.txt");
+			sampleStartTimes(job, splitPoints);
+			job.getConfiguration().set(CabTripRevenueRecordPartitioner.SPLIT_POINTS, splitPoints.toString());
+			job.addCacheFile(new URI(splitPoints.toString()+"#"+CabTripRevenueRecordPartitioner.SPLIT_POINTS_LINK));
+		}
+
 		job.setJarByClass(CabTripRevenue.class);
 		job.setJobName("CabTripCost ["+inputPath+"], R"+Integer.toString(numReducers));
 
-        job.setInputFormatClass(KeyValueTextInputFormat.class);
+        job.setInputFormatClass(CabTripInputFormat.class);
         job.setOutputFormatClass(TextOutputFormat.class);
 		
 		//job.setMapOutputKeyClass(CabTripRevenueRecord.class);
@@ -244,16 +339,153 @@ public class CabTripRevenue extends Configured implements Tool {
 		job.setOutputKeyClass(CabTripRevenueRecord.class);
 		job.setOutputValueClass(Text.class);
 
-        job.setMapperClass(CabTripRevenueMapper.class);
+        // trip length and timezone lookups are CPU bound; each thread has its own mapper,
+        // and map output order doesn't matter as the shuffle sorts it
+        if (mapThreads > 1)
+        {
+        	job.setMapperClass(MultithreadedMapper.class);
+        	MultithreadedMapper.setMapperClass(job, CabTripRevenueMapper.class);
+        	MultithreadedMapper.setNumberOfThreads(job, mapThreads);
+        }
+        else
+        	job.setMapperClass(CabTripRevenueMapper.class);
         job.setReducerClass(CabTripRevenueReducer.class); 
     	job.setPartitionerClass(CabTripRevenueRecordPartitioner.class);
     	job.setGroupingComparatorClass(CabTripRevenueRecordComp.class);
 
 		boolean status = job.waitForCompletion(true);
 		theLogger.info("run(): status="+status);
+
+		try {
+			fs.delete(workDir, true);
+		}
+		catch (Exception e)
+		{
+		}
+
 		return status ? 0 : 1;
 	}
 
+
+	/**
+	 * second stage of CabTrips' fused mode: sorts the revenue records CabTripReducer
+	 * has already costed by start time, and writes them as this job would, to a
+	 * single file
+	 * 
+	 * @param conf - as for this job; zones are set here if not given
+	 * @param input - SequenceFiles of CabTripRevenueRecord and Text
+	 * @param trips - CabTrips output, whose first trip gives the default time zone
+	 * @param output
+	 */
+	static Job createSortJob(Configuration conf, Path input, Path trips, Path output)
+			throws IOException, InterruptedException
+	{
+		Job job = Job.getInstance(conf, "Cab trip revenue sort");
+		FileInputFormat.addInputPath(job, input);
+		FileOutputFormat.setOutputPath(job, output);
+
+		if (job.getConfiguration().get(CabTripRevenueRecord.ZONES) == null)
+		{
+			Job tripsJob = Job.getInstance(conf);
+			FileInputFormat.addInputPath(tripsJob, trips);
+			job.getConfiguration().set(CabTripRevenueRecord.ZONES, getFirstTripZone(tripsJob));
+		}
+		theLogger.info("Using timezones ["+job.getConfiguration().get(CabTripRevenueRecord.ZONES)+"]");
+
+		job.setJarByClass(CabTripRevenue.class);
+		job.setInputFormatClass(SequenceFileInputFormat.class);
+		job.setOutputFormatClass(TextOutputFormat.class);
+		job.setMapOutputKeyClass(CabTripRevenueRecord.class);
+		job.setMapOutputValueClass(Text.class);
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(Text.class);
+
+		// records pass straight through to the sort
+		job.setMapperClass(Mapper.class);
+		job.setReducerClass(CabTripRevenueReducer.class);
+		job.setGroupingComparatorClass(CabTripRevenueRecordComp.class);
+		job.setNumReduceTasks(1);
+		return job;
+	}
+
+
+	/**
+	 * @param job
+	 * @return time zone of the start of the first trip in the job's input; the default
+	 * zone if there are no trips
+	 */
+	private static String getFirstTripZone(Job job) throws IOException, InterruptedException
+	{
+		CabTripInputFormat inputFormat = new CabTripInputFormat();
+		for (InputSplit split : inputFormat.getSplits(job))
+		{
+			TaskAttemptContext context = new TaskAttemptContextImpl(job.getConfiguration(), new TaskAttemptID());
+			RecordReader<Text, CabTripBuffer> reader = inputFormat.createRecordReader(split, context);
+			try {
+				reader.initialize(split, context);
+				while (reader.nextKeyValue())
+				{
+					CabTripBuffer trip = reader.getCurrentValue();
+					if (!trip.isEmpty())
+						return TimezoneMapper.latLngToTimezoneString(trip.getStart_lat(0), trip.getStart_long(0));
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return TimeZone.getDefault().getID();
+	}
+
+
+	/**
+	 * collects the start time of each trip read
+	 */
+	private static class StartTimes implements SplitSampler.Visitor<Text, CabTripBuffer> {
+		long[] times = new long[1024];
+		int size = 0;
+
+		@Override
+		public void visit(Text key, CabTripBuffer value) {
+			if (value.isEmpty())
+				return;
+
+			if (size == times.length)
+				times = Arrays.copyOf(times, size * 2);
+			times[size++] = value.getStart_timestamp(0);
+		}
+	}
+
+	/**
+	 * sampling pre-pass: reads a fraction of the input splits and writes start time split
+	 * points for CabTripRevenueRecordPartitioner
+	 * 
+	 * @param job
+	 * @param splitPoints - receives the split points
+	 */
+	private void sampleStartTimes(Job job, Path splitPoints) throws IOException, InterruptedException
+	{
+		List<StartTimes> samples = SplitSampler.sample(job, new CabTripInputFormat(), sampleFraction, SAMPLE_THREADS,
+			new SplitSampler.VisitorFactory<Text, CabTripBuffer, StartTimes>() {
+				@Override
+				public StartTimes create() {
+					return new StartTimes();
+				}
+			});
+
+		int n = 0;
+		for (StartTimes sample : samples)
+			n += sample.size;
+		long[] times = new long[n];
+		n = 0;
+		for (StartTimes sample : samples)
+		{
+			System.arraycopy(sample.times, 0, times, n, sample.size);
+			n += sample.size;
+		}
+
+		CabTripRevenueRecordPartitioner.createSplitPoints(job.getConfiguration(), times, splitPoints, numReducers);
+	}
+
 	/**
 	* @throws Exception When there is communication problems with the job tracker.
 	*/
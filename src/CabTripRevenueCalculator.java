@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+
+/**
+ * finds the length and cost of a trip, and builds the CabTripRevenueRecord and
+ * "<distance> <cost> <taxi>" value that CabTripRevenueReducer writes out; used by
+ * CabTripRevenueMapper, and by CabTripReducer in CabTrips' fused mode
+ *
+ * settings are read from the job configuration, as set by CabTripRevenue
+ */
+public class CabTripRevenueCalculator {
+	private static Logger theLogger = Logger.getLogger(CabTripRevenueCalculator.class);
+
+	private final static String unit = "K";
+
+	private TextOutputBuffer line = new TextOutputBuffer(128);
+	// index of each of the job's time zones, if there are several
+	private HashMap<String, Integer> zoneIndex = null;
+
+	// if a reference point is supplied, only trips passing within range are costed
+	private boolean useReference = false;
+	private double reference_lat;
+	private double reference_long;
+	private double reference_range;
+	private double taxi_start_charge;
+	private double taxi_charge_per_unit_dist;
+
+	// decimal places shown for distance and cost; -1 = full precision
+	public final static String DISTANCE_DECIMALS = "CabTripRevenue.distanceDecimals";
+	public final static String COST_DECIMALS = "CabTripRevenue.costDecimals";
+	private int distanceDecimals = -1;
+	private int costDecimals = -1;
+
+
+	public CabTripRevenueCalculator(Configuration conf)
+	{
+		useReference = conf.getBoolean("useReference", false);
+		if (useReference)
+		{
+			reference_lat = conf.getDouble("reference_lat", 37.62131);
+			reference_long = conf.getDouble("reference_long", -122.37896);
+			reference_range = conf.getDouble("reference_range", 1d);
+			theLogger.info("Using reference point ["+conf.get("reference_name")+"]");
+		}
+		taxi_start_charge = conf.getDouble("taxi_start_charge", 3.5);
+		taxi_charge_per_unit_dist = conf.getDouble("taxi_charge_per_unit_dist", 1.71);
+		distanceDecimals = conf.getInt(DISTANCE_DECIMALS, -1);
+		costDecimals = conf.getInt(COST_DECIMALS, -1);
+
+		// trips are shown in the job's zone, set once by CabTripRevenue; a fleet spanning
+		// several zones has each trip's start looked up
+		TimeZone[] zones = CabTripRevenueRecord.getZones(conf);
+		if (zones.length > 1)
+		{
+			zoneIndex = new HashMap<String, Integer>();
+			for (int i = zones.length - 1; i >= 0; i--)
+				zoneIndex.put(zones[i].getID(), i);
+		}
+		theLogger.info("CabTripRevenueCalculator: using timezone ["+zones[0].getID()+"]"+
+				(zones.length > 1 ? " and "+(zones.length - 1)+" others" : ""));
+	}
+
+
+	/**
+	 * @param taxi - taxi id
+	 * @param trip
+	 * @param summaryOutput - use the straight line distance from start to end rather
+	 * than the accumulated segment distance
+	 * @param record - receives the trip's times and zone
+	 * @param value - receives "<distance> <cost> <taxi>"
+	 * @return false if the trip is rejected: malformed, implausible, or not passing
+	 * within range of the reference
+	 */
+	public boolean calculate(Text taxi, CabTripBuffer trip, boolean summaryOutput,
+			CabTripRevenueRecord record, Text value)
+	{
+		if (trip.isEmpty())
+			return false;
+
+		double dist;
+		try {
+			dist = CabTripSegment.getTripLength(trip, summaryOutput, useReference, reference_lat, reference_long, reference_range, unit);
+		} catch (IOException e) {
+			return false;
+		}
+		if (dist == -1d)
+			return false;
+
+		double cost = taxi_start_charge + dist * taxi_charge_per_unit_dist;
+
+		// trips from unlisted zones are shown in the first
+		int zone = 0;
+		if (zoneIndex != null)
+		{
+			Integer z = zoneIndex.get(TimezoneMapper.latLngToTimezoneString(trip.getStart_lat(0), trip.getStart_long(0)));
+			if (z != null)
+				zone = z;
+		}
+
+		line.reset();
+		line.append(dist, distanceDecimals);
+		line.append((byte) ' ');
+		line.append(cost, costDecimals);
+		line.append((byte) ' ');
+		line.append(taxi);
+		value.set(line.getData(), 0, line.getLength());
+
+		record.setStart_timestamp(trip.getStart_timestamp(0));
+		record.setEnd_timestamp(trip.getEnd_timestamp(trip.size()-1));
+		record.setZone(zone);
+		return true;
+	}
+}
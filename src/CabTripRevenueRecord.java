@@ -1,63 +1,73 @@
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.util.Date;
 import java.util.TimeZone;
 
-import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 
 
 /**
  * @author Delano Greenidge
  *
  * Used for creating sorted reducer output for CabTripCost, order by start then end time stamps
- * 
+ *
+ * serialized as the start and end times, big-endian with the sign bit flipped so that
+ * comparing the first SORT_SIZE bytes gives the same order as compareTo, then the
+ * trip's time zone as an index into the job's list of zones (ZONES)
  */
-public class CabTripRevenueRecord 
+public class CabTripRevenueRecord
 	implements Writable, WritableComparable<CabTripRevenueRecord> {
 
-    private LongWritable start_timestamp = new LongWritable();
-	private LongWritable end_timestamp= new LongWritable();
-	private Text timezoneStr = new Text();
-	private static TimeZone timeZone = null;
+	// time zone ids, comma separated; trips are shown in the first unless there are several
+	public final static String ZONES = "CabTripRevenueRecord.zones";
+
+	// serialized size of the start and end times
+	public final static int SORT_SIZE = 16;
+
+    private long start_timestamp = 0L;
+	private long end_timestamp = 0L;
+	private int zone = 0;
 
-	public LongWritable getStart_timestamp() {
+	public long getStart_timestamp() {
 		return start_timestamp;
 	}
 
 	public void setStart_timestamp(long start_timestamp) {
-		this.start_timestamp.set(start_timestamp);
+		this.start_timestamp = start_timestamp;
 	}
 
-	public LongWritable getEnd_timestamp() {
+	public long getEnd_timestamp() {
 		return end_timestamp;
 	}
 
 	public void setEnd_timestamp(long end_timestamp) {
-		this.end_timestamp.set(end_timestamp);
+		this.end_timestamp = end_timestamp;
 	}
 
 
-	public Text getTimezoneStr() {
-		return timezoneStr;
+	/**
+	 * @return index of the trip's time zone in ZONES
+	 */
+	public int getZone() {
+		return zone;
 	}
 
-	public void setTimezoneStr(Text timezoneStr) {
-		this.timezoneStr = timezoneStr;
-	}    
-	
-	
+	public void setZone(int zone) {
+		this.zone = zone;
+	}
+
+
 	public CabTripRevenueRecord() {
 	    }
 
-    public CabTripRevenueRecord(long start_ts, long end_ts, String tzStr) {
-        this.start_timestamp.set(start_ts);
-        this.end_timestamp.set(end_ts);
-        this.timezoneStr.set(tzStr);
+    public CabTripRevenueRecord(long start_ts, long end_ts, int zone) {
+        this.start_timestamp = start_ts;
+        this.end_timestamp = end_ts;
+        this.zone = zone;
     }
 
     public static CabTripRevenueRecord read(DataInput in) throws IOException {
@@ -66,28 +76,61 @@ public class CabTripRevenueRecord
         return pair;
     }
 
+    /**
+     * @param conf
+     * @return the job's time zones; the default zone if none are set
+     */
+    public static TimeZone[] getZones(Configuration conf) {
+    	String[] ids = conf.getStrings(ZONES);
+    	if (ids == null || ids.length == 0)
+    		return new TimeZone[] { TimeZone.getDefault() };
+
+    	TimeZone[] zones = new TimeZone[ids.length];
+    	for (int i = 0; i < ids.length; i++)
+    		zones[i] = TimeZone.getTimeZone(ids[i]);
+    	return zones;
+    }
+
     @Override
     public void write(DataOutput out) throws IOException {
-    	start_timestamp.write(out);
-    	end_timestamp.write(out);
-        timezoneStr.write(out);
+    	out.writeLong(start_timestamp ^ Long.MIN_VALUE);
+    	out.writeLong(end_timestamp ^ Long.MIN_VALUE);
+    	WritableUtils.writeVInt(out, zone);
     }
 
     @Override
     public void readFields(DataInput in) throws IOException {
-    	start_timestamp.readFields(in);
-        end_timestamp.readFields(in);
-        timezoneStr.readFields(in);
+    	start_timestamp = in.readLong() ^ Long.MIN_VALUE;
+    	end_timestamp = in.readLong() ^ Long.MIN_VALUE;
+    	zone = WritableUtils.readVInt(in);
     }
 
     @Override
     public int compareTo(CabTripRevenueRecord pair) {
-		int cmp = (int)(this.getStart_timestamp().get() - pair.getStart_timestamp().get());
+		int cmp = Long.compare(this.start_timestamp, pair.start_timestamp);
 		if (cmp == 0)
-			cmp = (int)(this.getEnd_timestamp().get() - pair.getEnd_timestamp().get());
-        return cmp; 		// to sort ascending 
+			cmp = Long.compare(this.end_timestamp, pair.end_timestamp);
+        return cmp; 		// to sort ascending
+    }
+
+    /**
+     * compares serialized records as unsigned bytes: by start, then end time
+     */
+    public static class Comparator extends WritableComparator {
+    	public Comparator() {
+    		super(CabTripRevenueRecord.class);
+    	}
+
+    	@Override
+    	public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+    		return compareBytes(b1, s1, SORT_SIZE, b2, s2, SORT_SIZE);
+    	}
+    }
+
+    static {
+    	WritableComparator.define(CabTripRevenueRecord.class, new Comparator());
     }
-    
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -98,20 +141,13 @@ public class CabTripRevenueRecord
         }
 
         CabTripRevenueRecord that = (CabTripRevenueRecord) o;
-        if (start_timestamp != null ? !start_timestamp.equals(that.start_timestamp) : that.start_timestamp != null) {
-           return false;
-        }
-        if (end_timestamp != null ? !end_timestamp.equals(that.end_timestamp) : that.end_timestamp != null) {
-           return false;
-        }
-
-        return true;
+        return start_timestamp == that.start_timestamp && end_timestamp == that.end_timestamp;
     }
 
     @Override
     public int hashCode() {
-        int result = start_timestamp != null ? start_timestamp.hashCode() : 0;
-        result = 37 * result + (end_timestamp != null ? end_timestamp.hashCode() : 0);
+        int result = (int) (start_timestamp ^ (start_timestamp >>> 32));
+        result = 37 * result + (int) (end_timestamp ^ (end_timestamp >>> 32));
         return result;
     }
 
@@ -124,37 +160,38 @@ public class CabTripRevenueRecord
 
     	return builder.toString();
     }
- 
+
 	/**
-	 * @param epoch - seconds since 1970-01-01 00:00:00
-	 * @param fmt - required format
-	 * @return
+	 * @param zones - the job's time zones, from getZones
+	 * @return a formatter for each zone, indexed as the records' zones
 	 */
-	private String getFormattedDate(long epoch, DateFormat fmt)
+	public static GpsTimestampFormatter[] getFormatters(TimeZone[] zones)
 	{
-		if (fmt == null)
-			return Long.toString(epoch);
-		
-		Date date = new Date(epoch * 1000L);
-		timeZone = TimeZone.getTimeZone(timezoneStr.toString());
-		fmt.setTimeZone(timeZone);
-		return fmt.format(date);
+		GpsTimestampFormatter[] formatters = new GpsTimestampFormatter[zones.length];
+		for (int i = 0; i < zones.length; i++)
+			formatters[i] = new GpsTimestampFormatter(zones[i]);
+		return formatters;
 	}
-	
+
 	/**
-	 * creates string representation; parses timestamps into human readable form if given a DateFormat
-	 * @param fmt
-	 * @return
+	 * appends the text representation of the start and end times; formats timestamps
+	 * into human readable form in the record's zone if given formatters
+	 * @param out
+	 * @param formatters - from getFormatters, or null for epoch seconds
 	 */
-	public String toString(DateFormat fmt)
+	public void format(TextOutputBuffer out, GpsTimestampFormatter[] formatters)
 	{
-		StringBuilder s = new StringBuilder();
-
-		s.append(getFormattedDate(start_timestamp.get(), fmt));
-		s.append(" ");
-		s.append(getFormattedDate(end_timestamp.get(), fmt));
-		
-		
-		return s.toString();
+		if (formatters == null)
+		{
+			out.append(start_timestamp);
+			out.append((byte) ' ');
+			out.append(end_timestamp);
+			return;
+		}
+
+		GpsTimestampFormatter fmt = formatters[zone < formatters.length ? zone : 0];
+		fmt.format(start_timestamp, out);
+		out.append((byte) ' ');
+		fmt.format(end_timestamp, out);
 	}
 }
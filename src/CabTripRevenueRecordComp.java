@@ -5,7 +5,15 @@ public class CabTripRevenueRecordComp
 	extends WritableComparator {
 
 	 public CabTripRevenueRecordComp() {
-	     super(CabTripRevenueRecord.class, true);
+	     super(CabTripRevenueRecord.class);
+	 }
+
+	 /**
+	  * compares the start and end times of serialized records directly
+	  */
+	 @Override
+	 public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+		 return compareBytes(b1, s1, CabTripRevenueRecord.SORT_SIZE, b2, s2, CabTripRevenueRecord.SORT_SIZE);
 	 }
 	
 	 @SuppressWarnings("rawtypes")
@@ -19,9 +27,9 @@ public class CabTripRevenueRecordComp
 		 CabTripRevenueRecord pair = (CabTripRevenueRecord) wc1;
 		 CabTripRevenueRecord pair2 = (CabTripRevenueRecord) wc2;
 		 
-		 int cmp = (int)(pair.getStart_timestamp().get() - pair2.getStart_timestamp().get());
+		 int cmp = Long.compare(pair.getStart_timestamp(), pair2.getStart_timestamp());
 		 if (cmp == 0)
-			 cmp = (int)(pair.getEnd_timestamp().get() - pair2.getEnd_timestamp().get());
+			 cmp = Long.compare(pair.getEnd_timestamp(), pair2.getEnd_timestamp());
 		 
 		 return cmp;
 	 }
@@ -1,14 +1,150 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.log4j.Logger;
+
+/**
+ * sends trips to reducers by start time; if given split points (see createSplitPoints)
+ * each reducer gets a contiguous range of start times, so that the part files taken in
+ * order are sorted (total order), otherwise by start time modulo the number of reducers
+ */
+public class CabTripRevenueRecordPartitioner
+	extends  Partitioner<CabTripRevenueRecord, Text> implements Configurable {
+
+	private static Logger theLogger = Logger.getLogger(CabTripRevenueRecordPartitioner.class);
+
+	// sorted start times, one per line, shipped in the distributed cache as SPLIT_POINTS_LINK
+	public final static String SPLIT_POINTS = "CabTripRevenueRecordPartitioner.splitPoints";
+	public final static String SPLIT_POINTS_LINK = "split-points";
+
+	private Configuration conf;
+
+	// first start time of each partition after the first
+	private long[] splitPoints = null;
+
+	@Override
+	public void setConf(Configuration conf) {
+		this.conf = conf;
+		String file = conf.get(SPLIT_POINTS);
+		if (file != null)
+		{
+			try {
+				readSplitPoints(file);
+			} catch (IOException e) {
+				theLogger.error("Failed to read split points ["+file+"], using start time: "+e.toString());
+				splitPoints = null;
+			}
+		}
+	}
 
-public class CabTripRevenueRecordPartitioner 
-	extends  Partitioner<CabTripRevenueRecord, Text> {
 	@Override
-    public int getPartition(CabTripRevenueRecord pair, 
-                            Text data, 
+	public Configuration getConf() {
+		return conf;
+	}
+
+	@Override
+    public int getPartition(CabTripRevenueRecord pair,
+                            Text data,
                             int numberOfPartitions) {
+		long start = pair.getStart_timestamp();
+		if (splitPoints != null)
+		{
+			// trips starting at a split point go above it
+			int i = Arrays.binarySearch(splitPoints, start);
+			i = i < 0 ? -i - 1 : i + 1;
+			return Math.min(i, numberOfPartitions - 1);
+		}
+
     	// make sure that partitions are non-negative
-		return (int)(pair.getStart_timestamp().get()) % numberOfPartitions;
+		return (int)(start) % numberOfPartitions;
     }
 
+
+	/**
+	 * read split points from the distributed cache, or straight from the file system
+	 * if they are not there (e.g. local job runner)
+	 */
+	private void readSplitPoints(String file) throws IOException
+	{
+		InputStream in;
+		File link = new File(SPLIT_POINTS_LINK);
+		if (link.exists())
+			in = new FileInputStream(link);
+		else
+		{
+			Path pt = new Path(file);
+			in = pt.getFileSystem(conf).open(pt);
+		}
+
+		long[] points = new long[64];
+		int n = 0;
+		BufferedReader br = new BufferedReader(new InputStreamReader(in));
+		try {
+			String line;
+			while ((line = br.readLine()) != null)
+			{
+				if (n == points.length)
+					points = Arrays.copyOf(points, n * 2);
+				points[n++] = Long.parseLong(line.trim());
+			}
+		} finally {
+			br.close();
+		}
+		splitPoints = Arrays.copyOf(points, n);
+	}
+
+
+	/**
+	 * choose split points giving each partition an equal share of a sample of trip start
+	 * times, as InputSampler does for TotalOrderPartitioner; repeated start times give
+	 * fewer points, leaving the last partitions empty
+	 *
+	 * @param conf
+	 * @param startTimes - sampled start times; sorted in place
+	 * @param file - receives the split points, one per line
+	 * @param numPartitions
+	 * @return number of split points written
+	 * @throws IOException
+	 */
+	public static int createSplitPoints(Configuration conf, long[] startTimes, Path file, int numPartitions) throws IOException
+	{
+		Arrays.sort(startTimes);
+
+		long[] points = new long[Math.max(0, numPartitions - 1)];
+		int n = 0;
+		if (startTimes.length > 0)
+		{
+			float step = startTimes.length / (float) numPartitions;
+			for (int i = 1; i < numPartitions; i++)
+			{
+				long point = startTimes[Math.min(startTimes.length - 1, Math.round(i * step))];
+				if (n == 0 || point > points[n-1])
+					points[n++] = point;
+			}
+		}
+		theLogger.info("Split points: "+n+" from "+startTimes.length+" sampled trips, "+numPartitions+" partitions");
+
+		FileSystem fs = file.getFileSystem(conf);
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fs.create(file, true)));
+		try {
+			for (int i = 0; i < n; i++)
+				out.write(points[i]+"\n");
+		} finally {
+			out.close();
+		}
+		return n;
+	}
 }
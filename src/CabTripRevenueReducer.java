@@ -1,6 +1,5 @@
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Reducer;
@@ -10,14 +9,16 @@ public class CabTripRevenueReducer
 	extends Reducer<CabTripRevenueRecord, Text, Text, Text> {
 
 	private Text keyStr = new Text();
-	protected static DateFormat formatter = null;
+	private TextOutputBuffer line = new TextOutputBuffer();
+	// one per zone of the job; null for epoch time
+	protected GpsTimestampFormatter[] formatters = null;
 
 	// output timestamps as epoch time; alternative is the following format:
 	//
 	// YYYY-MM-DDTHH:mm:ssZ
 	// e.g. 2012-01-03T10:28+0300
 	//
-	protected static boolean epochTime = true;	
+	protected boolean epochTime = true;	
 	
 	@Override
 	public void setup(Context context) {
@@ -27,9 +28,9 @@ public class CabTripRevenueReducer
 		// by default use accumulated segment distance
 		epochTime = conf.getBoolean("CabTripRevenue.epochTime", true);
 
-		if (!epochTime && formatter == null)
+		if (!epochTime && formatters == null)
 		{
-			formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+			formatters = CabTripRevenueRecord.getFormatters(CabTripRevenueRecord.getZones(conf));
 		}
 	}	
 	
@@ -38,7 +39,10 @@ public class CabTripRevenueReducer
 		
 		for (Text t : values)
 		{
-			keyStr.set(key.toString(formatter));
+			// the key moves with the values; trips in a group may be in different zones
+			line.reset();
+			key.format(line, formatters);
+			keyStr.set(line.getData(), 0, line.getLength());
 			context.write(keyStr, t);
 		}
 	}
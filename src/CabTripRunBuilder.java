@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * packs a single taxi's time-ordered segments into compact runs: each time-contiguous
+ * "M"-"M" segment is appended to the previous one as a single extra GPS point
+ *
+ * the packing is lossless; CabTripReducer expands runs back into the original
+ * segments with unpack(), so its output is the same whether segments have been
+ * packed zero, one or many times
+ */
+public class CabTripRunBuilder {
+
+	/**
+	 * receives each completed run
+	 */
+	public interface Collector {
+		void collect(CabTripSegment run) throws IOException, InterruptedException;
+	}
+
+	private CabTripSegment pending = new CabTripSegment();
+	private CabTripSegment part = new CabTripSegment();
+	private boolean hasPending = false;
+
+
+	/**
+	 * start on a new taxi
+	 */
+	public void reset()
+	{
+		hasPending = false;
+	}
+
+
+	/**
+	 * add next segment, which may itself hold a run, in time order
+	 *
+	 * @param seg
+	 * @param out - receives any run completed by this segment
+	 */
+	public void add(CabTripSegment seg, Collector out) throws IOException, InterruptedException
+	{
+		for (int i = 0; i < seg.getNumSegments(); i++)
+		{
+			seg.getSegment(i, part);
+			addSegment(part, out);
+		}
+	}
+
+	/**
+	 * emit the run in progress, if any
+	 *
+	 * @param out
+	 */
+	public void flush(Collector out) throws IOException, InterruptedException
+	{
+		if (hasPending)
+		{
+			hasPending = false;
+			out.collect(pending);
+		}
+	}
+
+
+	private void addSegment(CabTripSegment seg, Collector out) throws IOException, InterruptedException
+	{
+		long end = seg.getEnd_timestamp().get();
+		if (hasPending && continuesRun(seg))
+		{
+			pending.appendToRun(end, seg.getEnd_lat().get(), seg.getEnd_long().get());
+			return;
+		}
+
+		flush(out);
+		pending.set(seg);
+		hasPending = true;
+	}
+
+	/**
+	 * @return true if seg is an "M"-"M" segment starting where the pending run ends
+	 */
+	private boolean continuesRun(CabTripSegment seg)
+	{
+		return isMoving(pending.getEnd_status())
+			&& isMoving(seg.getStart_status()) && isMoving(seg.getEnd_status())
+			&& seg.getStart_timestamp().get() == pending.getLastEnd_timestamp()
+			&& seg.getStart_lat().get() == pending.getLastEnd_lat()
+			&& seg.getStart_long().get() == pending.getLastEnd_long();
+	}
+
+
+	/**
+	 * @return true for status "M"
+	 */
+	public static boolean isMoving(Text status)
+	{
+		return status.getLength() == 1 && status.getBytes()[0] == 'M';
+	}
+
+
+	/**
+	 * expands the runs in a taxi's time-ordered segments, e.g. reduce() values, back
+	 * into single segments in time order
+	 *
+	 * a run is sorted by its first segment, so segments from other map tasks or spills
+	 * may sort between its start and end; these are merged back into place
+	 *
+	 * @param values
+	 * @return single segments, each valid until the next is requested
+	 */
+	public static Iterable<CabTripSegment> unpack(final Iterable<CabTripSegment> values)
+	{
+		return new Iterable<CabTripSegment>() {
+			@Override
+			public Iterator<CabTripSegment> iterator() {
+				return new RunIterator(values.iterator());
+			}
+		};
+	}
+
+
+	/**
+	 * a run being expanded
+	 */
+	private static class Cursor {
+		CabTripSegment run = new CabTripSegment();
+		int next = 0;
+
+		long getNextStart() {
+			return run.getSegmentStart_timestamp(next);
+		}
+	}
+
+	/**
+	 * merges single segments with the remainder of any runs started before them
+	 */
+	private static class RunIterator implements Iterator<CabTripSegment> {
+		private Iterator<CabTripSegment> values;
+		private CabTripSegment lookahead = null;
+		private CabTripSegment segment = new CabTripSegment();
+
+		// runs in the order they were opened, and spares for reuse
+		private ArrayList<Cursor> open = new ArrayList<Cursor>();
+		private ArrayList<Cursor> free = new ArrayList<Cursor>();
+
+		RunIterator(Iterator<CabTripSegment> values) {
+			this.values = values;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return lookahead != null || !open.isEmpty() || values.hasNext();
+		}
+
+		@Override
+		public CabTripSegment next() {
+			// the iterator may reuse the value object, so only advance once the
+			// previous segment is finished with
+			if (lookahead == null && values.hasNext())
+				lookahead = values.next();
+
+			Cursor first = null;
+			for (Cursor c : open)
+			{
+				if (first == null || c.getNextStart() < first.getNextStart())
+					first = c;
+			}
+
+			if (lookahead != null
+				&& (first == null || lookahead.getStart_timestamp().get() < first.getNextStart()))
+			{
+				CabTripSegment value = lookahead;
+				lookahead = null;
+				if (value.getNumSegments() == 1)
+					return value;
+
+				first = free.isEmpty() ? new Cursor() : free.remove(free.size() - 1);
+				first.run.set(value);
+				first.next = 0;
+				open.add(first);
+			}
+
+			if (first == null)
+				throw new NoSuchElementException();
+
+			first.run.getSegment(first.next++, segment);
+			if (first.next == first.run.getNumSegments())
+			{
+				open.remove(first);
+				free.add(first);
+			}
+			return segment;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
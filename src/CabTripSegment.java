@@ -1,5 +1,6 @@
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.log4j.Logger;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.DoubleWritable;
@@ -7,11 +8,12 @@ import org.apache.hadoop.io.DoubleWritable;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.TimeZone;
 
 /**
  * @author Delano
@@ -21,8 +23,13 @@ import java.util.Date;
 public class CabTripSegment implements Writable {
 
 	private static Logger theLogger = Logger.getLogger(CabTripSegment.class);
-	private static SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-	private static Text tzStr = null;	// time zone string
+	// GpsTimestampParser caches offsets, so each thread has its own
+	private static ThreadLocal<GpsTimestampParser> timestampParser = new ThreadLocal<GpsTimestampParser>() {
+		@Override
+		protected GpsTimestampParser initialValue() {
+			return new GpsTimestampParser(TimeZone.getDefault());
+		}
+	};
 
     private Text start_status = new Text();  // "M" or "E"
     private LongWritable start_timestamp = new LongWritable();   // epoch time of segment start
@@ -34,6 +41,27 @@ public class CabTripSegment implements Writable {
     private DoubleWritable end_lat = new DoubleWritable();     // latitude at segment end
     private DoubleWritable end_long = new DoubleWritable();        // longitude at segment end
     
+    private final static Text STATUS_MOVING = new Text("M");
+    private final static Text STATUS_EMPTY = new Text("E");
+
+    // wire format status codes, two bits each for start and end status (see getStatusCodes)
+    final static int CODE_NONE = 0;		// ""
+    final static int CODE_EMPTY = 1;	// "E"
+    final static int CODE_MOVING = 2;	// "M"
+    final static int CODE_OTHER = 3;	// written out as Text
+    final static int END_STATUS_SHIFT = 2;
+    // flag set when coordinates are written as doubles rather than micro-degrees
+    private final static int FLAG_DOUBLES = 0x10;
+    // flag set when a run follows
+    private final static int FLAG_RUN = 0x20;
+
+    // further points of a run of contiguous "M"-"M" segments following this one, as
+    // merged by CabIDCombiner; each point is the end of one more segment
+    private int runLength = 0;
+    private long[] run_timestamp = null;
+    private double[] run_lat = null;
+    private double[] run_long = null;
+    
 
 	public CabTripSegment(String start_status, long start_timestamp, double start_lat, double start_long,
 			String end_status, long end_timestamp, double end_lat, double end_long)
@@ -50,20 +78,52 @@ public class CabTripSegment implements Writable {
 	}
 
     public CabTripSegment(CabTripSegment seg) {
-        this.start_status.set(seg.start_status.toString());
-        this.start_timestamp.set(seg.start_timestamp.get());
-        this.start_lat.set(seg.start_lat.get());
-        this.start_long.set(seg.start_long.get());
-
-        this.end_status.set(seg.end_status.toString());
-        this.end_timestamp.set(seg.end_timestamp.get());
-        this.end_lat.set(seg.end_lat.get());
-        this.end_long.set(seg.end_long.get());
+        set(seg);
     }
 
     public CabTripSegment() {
     }
 
+    /**
+     * overwrite all fields; allows a single instance to be reused for every record
+     */
+    public void set(Text start_status, long start_timestamp, double start_lat, double start_long,
+			Text end_status, long end_timestamp, double end_lat, double end_long)
+    {
+        this.start_status.set(start_status);
+        this.start_timestamp.set(start_timestamp);
+        this.start_lat.set(start_lat);
+        this.start_long.set(start_long);
+
+        this.end_status.set(end_status);
+        this.end_timestamp.set(end_timestamp);
+        this.end_lat.set(end_lat);
+        this.end_long.set(end_long);
+        this.runLength = 0;
+    }
+
+    /**
+     * overwrite all fields, including any run, with a copy of those of seg
+     */
+    public void set(CabTripSegment seg)
+    {
+        if (seg == this)
+            return;
+        set(seg.start_status, seg.start_timestamp.get(), seg.start_lat.get(), seg.start_long.get(),
+            seg.end_status, seg.end_timestamp.get(), seg.end_lat.get(), seg.end_long.get());
+        for (int i = 0; i < seg.runLength; i++)
+            appendToRun(seg.run_timestamp[i], seg.run_lat[i], seg.run_long[i]);
+    }
+
+    /**
+     * copy the times and coordinates of this segment, but not any run, to the end of trip
+     */
+    public void addTo(CabTripBuffer trip)
+    {
+        trip.add(start_timestamp.get(), start_lat.get(), start_long.get(),
+            end_timestamp.get(), end_lat.get(), end_long.get());
+    }
+
     public static CabTripSegment read(DataInput in) throws IOException {
         CabTripSegment seg = new CabTripSegment();
         seg.readFields(in);
@@ -79,6 +139,45 @@ public class CabTripSegment implements Writable {
 	 * @return
 	 */
 	public static CabTripSegment[] parse(String segStr)
+	{
+		if (segStr == null)
+			return null;
+
+		byte[] b = segStr.getBytes(StandardCharsets.UTF_8);
+		return parse(b, 0, b.length);
+	}
+
+
+	/**
+	 * turn a semicolon separated list of segment data (without status codes) into 
+	 * an array of CabTripSegments, reading directly from the bytes of e.g. a Text
+	 * 
+	 * @param b - input buffer
+	 * @param offset - start of segment list
+	 * @param length - length of segment list
+	 * @return
+	 */
+	public static CabTripSegment[] parse(byte[] b, int offset, int length)
+	{
+		CabTripBuffer trip = new CabTripBuffer();
+		if (!parse(b, offset, length, trip))
+			return null;
+
+		CabTripSegment[] segments = new CabTripSegment[trip.size()];
+		for (int i = 0; i < segments.length; i++)
+			segments[i] = new CabTripSegment("", trip.getStart_timestamp(i), trip.getStart_lat(i), trip.getStart_long(i),
+			                    "", trip.getEnd_timestamp(i), trip.getEnd_lat(i), trip.getEnd_long(i));
+		return segments;
+	}
+
+
+	/**
+	 * as parse(b, offset, length), but into the columns of a reusable CabTripBuffer
+	 * 
+	 * @param trip - cleared, then receives the segments
+	 * @return false if the segment list is malformed
+	 */
+	public static boolean parse(byte[] b, int offset, int length, CabTripBuffer trip)
 	{
 		// input timestamps as epoch time; alternative is the following format:
 		//
@@ -87,60 +186,68 @@ public class CabTripSegment implements Writable {
 		//
 		Boolean epochTime = null;
 		
-		CabTripSegment[] retVal = null;
-		ArrayList<CabTripSegment> segList = new ArrayList<CabTripSegment>();
+		trip.clear();
+		int[] fieldStart = new int[6];
+		int[] fieldEnd = new int[6];
 		double start_lat, start_long, end_lat, end_long;
 		long start_ts = 0;
 		long end_ts = 0;
 		
-		if (segStr == null)
-			return null;
-		
-		String[] seg = segStr.split(";");
-		retVal = new CabTripSegment[seg.length];
-		
-		// parse each of the six (6) comma-separated components
-		for (String s : seg)
+		int end = offset + length;
+		int segStart = offset;
+		while (segStart < end || trip.isEmpty())
 		{
-			String[] bits = s.split(" ");
-			
-			if (bits.length != 6)
-				return null;
+			int segEnd = segStart;
+			while (segEnd < end && b[segEnd] != ';')
+				segEnd++;
+
+			// split into the six (6) space-separated components
+			int n = 0;
+			int fs = segStart;
+			for (int i = segStart; i <= segEnd; i++)
+			{
+				if (i == segEnd || b[i] == ' ')
+				{
+					if (n < 6)
+					{
+						fieldStart[n] = fs;
+						fieldEnd[n] = i;
+					}
+					n++;
+					fs = i + 1;
+				}
+			}
 			
-			// do coordinates first
-			//start_ts = Long.parseLong(bits[0]);
-			start_lat = Double.parseDouble(bits[1]);
-			start_long = Double.parseDouble(bits[2]);			
-			//end_ts = Long.parseLong(bits[3]);			
-			end_lat = Double.parseDouble(bits[4]);
-			end_long = Double.parseDouble(bits[5]);
-
-			// reject dodgy coordinates
-			if (Math.abs(start_lat) >= 90d || Math.abs(start_long) > 180d ||
-				Math.abs(end_lat) >= 90d   || Math.abs(end_long) > 180d)
-				return null;
-			//throw new IOException("Coordinates invalid");
+			if (n != 6)
+				return false;
 			
+			// do coordinates first; reject dodgy coordinates
+			start_lat = parseCoordinate(b, fieldStart[1], fieldEnd[1], GpsCoordinates.MAX_LATITUDE - 1);
+			start_long = parseCoordinate(b, fieldStart[2], fieldEnd[2], GpsCoordinates.MAX_LONGITUDE);
+			end_lat = parseCoordinate(b, fieldStart[4], fieldEnd[4], GpsCoordinates.MAX_LATITUDE - 1);
+			end_long = parseCoordinate(b, fieldStart[5], fieldEnd[5], GpsCoordinates.MAX_LONGITUDE);
+			if (Double.isNaN(start_lat) || Double.isNaN(start_long) ||
+				Double.isNaN(end_lat) || Double.isNaN(end_long))
+				return false;
 
 
 			// attempt to parse timestamps as numbers
 			if (epochTime == null || epochTime)
 			{
-				try {
-					start_ts = (long) Double.parseDouble(bits[0]);
-					end_ts = (long) Double.parseDouble(bits[3]);
+				start_ts = parseEpoch(b, fieldStart[0], fieldEnd[0]);
+				end_ts = parseEpoch(b, fieldStart[3], fieldEnd[3]);
+				if (start_ts != Long.MIN_VALUE && end_ts != Long.MIN_VALUE)
+				{
 					if (epochTime == null)
-						epochTime = new Boolean(true);
-				} catch (NumberFormatException e)
+						epochTime = Boolean.TRUE;
+				}
+				else if (epochTime != null)
 				{
-					if (epochTime != null)
-					{
-						theLogger.error( e.getMessage(), e );
-						return null;
-					}
-					else						
-						epochTime = new Boolean(false);
+					theLogger.error("Bad epoch timestamp in segment list");
+					return false;
 				}
+				else
+					epochTime = Boolean.FALSE;
 			}
 			
 			
@@ -149,28 +256,94 @@ public class CabTripSegment implements Writable {
 			{
 				try {
 					// parse dates and reject if they are invalid
-					start_ts = formatter.parse(bits[0]).getTime()/1000;
-					end_ts = formatter.parse(bits[3]).getTime()/1000;
+					GpsTimestampParser parser = timestampParser.get();
+					start_ts = parser.parseIso(b, fieldStart[0], fieldEnd[0] - fieldStart[0]);
+					end_ts = parser.parseIso(b, fieldStart[3], fieldEnd[3] - fieldStart[3]);
 				} catch (ParseException e) {
 					theLogger.error( e.getMessage(), e );
-					return null;
+					return false;
 				}
 			}
 			
 			// reject dodgy timetamps
 			if (start_ts >= end_ts)
-				return null;
+				return false;
 			//throw new IOException("Segment times invalid");
 			
 						
 			// we don't need to save the status codes as these are all in sorted time order
-			CabTripSegment sg= new CabTripSegment("", start_ts, start_lat, start_long,
-			                    "",  end_ts, end_lat, end_long);
-			segList.add(sg);
+			trip.add(start_ts, start_lat, start_long, end_ts, end_lat, end_long);
+			
+			segStart = segEnd + 1;
 		}
-		retVal = segList.toArray(new CabTripSegment[0]);
 		
-		return retVal;
+		return true;
+	}
+
+
+	/**
+	 * @param b - input buffer
+	 * @param start - start of value
+	 * @param end - end of value
+	 * @param limit - largest permitted absolute value in micro-degrees
+	 * @return coordinate, or NaN if malformed or out of range
+	 */
+	private static double parseCoordinate(byte[] b, int start, int end, int limit)
+	{
+		int e6 = GpsCoordinates.parseMicroDegrees(b, start, end - start, limit);
+		if (e6 != GpsCoordinates.INVALID)
+			return GpsCoordinates.toDegrees(e6);
+
+		// Double.toString writes small values with an exponent, e.g. 1.0E-4
+		double value;
+		try {
+			value = Double.parseDouble(new String(b, start, end - start, StandardCharsets.UTF_8));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+		e6 = GpsCoordinates.toMicroDegrees(value);
+		if (Double.isNaN(value) || Math.abs(e6) > limit)
+			return Double.NaN;
+		return GpsCoordinates.toDegrees(e6);
+	}
+
+
+	/**
+	 * @param b - input buffer
+	 * @param start - start of value
+	 * @param end - end of value
+	 * @return epoch seconds, truncating any fraction, or Long.MIN_VALUE if not a number
+	 */
+	private static long parseEpoch(byte[] b, int start, int end)
+	{
+		long value = 0L;
+		int digits = 0;
+		int pos = start;
+		for (; pos < end; pos++)
+		{
+			int d = b[pos] - '0';
+			if (d < 0 || d > 9 || digits == 18)
+				break;
+			value = value * 10 + d;
+			digits++;
+		}
+
+		// allow "1267402225.0"
+		if (pos < end && b[pos] == '.')
+		{
+			pos++;
+			while (pos < end && b[pos] >= '0' && b[pos] <= '9')
+				pos++;
+		}
+		if (digits > 0 && pos == end)
+			return value;
+
+		// anything else numeric, e.g. 1.267402225E9
+		try {
+			return (long) Double.parseDouble(new String(b, start, end - start, StandardCharsets.UTF_8));
+		} catch (NumberFormatException e) {
+			return Long.MIN_VALUE;
+		}
 	}
 	
 	
@@ -186,6 +359,24 @@ public class CabTripSegment implements Writable {
 			boolean summaryOutput, boolean useReference,
 			double reference_lat, double reference_long, 
 			double reference_range, String unit) throws IOException
+	{
+		if (segments == null || segments.length == 0)
+			return -1d;
+
+		CabTripBuffer trip = new CabTripBuffer();
+		for (CabTripSegment s : segments)
+			s.addTo(trip);
+		return getTripLength(trip, summaryOutput, useReference, reference_lat, reference_long, reference_range, unit);
+	}
+
+
+	/**
+	 * as getTripLength(segments, ...), for a trip held in a CabTripBuffer
+	 */
+	public static double getTripLength(CabTripBuffer trip, 
+			boolean summaryOutput, boolean useReference,
+			double reference_lat, double reference_long, 
+			double reference_range, String unit) throws IOException
 	{
 		double trip_length = 0d;
 		double inter_seg_dist = 0d;
@@ -200,20 +391,21 @@ public class CabTripSegment implements Writable {
 		
 		boolean in_reference_range = false;
 		
-		if (segments == null || segments.length == 0)
+		if (trip == null || trip.isEmpty())
 			return -1d;
 		
 		
 		// check each segment
-		for (CabTripSegment s : segments)
+		int last = trip.size() - 1;
+		for (int i = 0; i <= last; i++)
 		{
-			start_ts = s.getStart_timestamp().get();
-			start_lat = s.getStart_lat().get();
-			start_long = s.getStart_long().get();
+			start_ts = trip.getStart_timestamp(i);
+			start_lat = trip.getStart_lat(i);
+			start_long = trip.getStart_long(i);
 			
-			end_ts = s.getEnd_timestamp().get();
-			end_lat = s.getEnd_lat().get();
-			end_long = s.getEnd_long().get();
+			end_ts = trip.getEnd_timestamp(i);
+			end_lat = trip.getEnd_lat(i);
+			end_long = trip.getEnd_long(i);
 			
 
 			// it is possible for GPS samples to have gaps, so that end timestamp of one segment
@@ -273,21 +465,20 @@ public class CabTripSegment implements Writable {
 		
 		
 		// if trip lasts more than 6 hours, bin it
-		if (segments[segments.length-1].getEnd_timestamp().get() -
-				segments[0].getStart_timestamp().get() >= 21600L)
+		if (trip.getDuration() >= 21600L)
 			return -1d;
 	
 
 		// if we are doing summary output, just use the start and end points of the segments
 		if (summaryOutput)
 		{
-			start_ts = segments[0].getStart_timestamp().get();
-			start_lat = segments[0].getStart_lat().get();
-			start_long = segments[0].getStart_long().get();
+			start_ts = trip.getStart_timestamp(0);
+			start_lat = trip.getStart_lat(0);
+			start_long = trip.getStart_long(0);
 			
-			end_ts = segments[segments.length-1].getEnd_timestamp().get();
-			end_lat = segments[segments.length-1].getEnd_lat().get();
-			end_long = segments[segments.length-1].getEnd_long().get();
+			end_ts = trip.getEnd_timestamp(last);
+			end_lat = trip.getEnd_lat(last);
+			end_long = trip.getEnd_long(last);
 			
 			trip_length = GeoDistanceCalc.distance(start_lat, start_long, end_lat, end_long, unit);
 		}
@@ -304,31 +495,293 @@ public class CabTripSegment implements Writable {
 			return trip_length;
 	}	    
     
+    /**
+     * @return number of segments held, i.e. 1 plus the length of any run
+     */
+    public int getNumSegments() {
+        return runLength + 1;
+    }
+
+    /**
+     * extends this segment's run with one more contiguous "M"-"M" segment
+     * 
+     * @param timestamp - end time of added segment
+     * @param lat - end latitude of added segment
+     * @param lng - end longitude of added segment
+     */
+    public void appendToRun(long timestamp, double lat, double lng)
+    {
+        if (run_timestamp == null)
+        {
+            run_timestamp = new long[16];
+            run_lat = new double[16];
+            run_long = new double[16];
+        }
+        else if (runLength == run_timestamp.length)
+        {
+            run_timestamp = Arrays.copyOf(run_timestamp, runLength * 2);
+            run_lat = Arrays.copyOf(run_lat, runLength * 2);
+            run_long = Arrays.copyOf(run_long, runLength * 2);
+        }
+        run_timestamp[runLength] = timestamp;
+        run_lat[runLength] = lat;
+        run_long[runLength] = lng;
+        runLength++;
+    }
+
+    /**
+     * @param index - 0 for this segment, 1..getNumSegments()-1 for the run
+     * @return start time of one of the segments held
+     */
+    public long getSegmentStart_timestamp(int index) {
+        if (index == 0)
+            return start_timestamp.get();
+        return index == 1 ? end_timestamp.get() : run_timestamp[index-2];
+    }
+
+    /**
+     * @return end time of the last segment held
+     */
+    public long getLastEnd_timestamp() {
+        return runLength == 0 ? end_timestamp.get() : run_timestamp[runLength-1];
+    }
+
+    public double getLastEnd_lat() {
+        return runLength == 0 ? end_lat.get() : run_lat[runLength-1];
+    }
+
+    public double getLastEnd_long() {
+        return runLength == 0 ? end_long.get() : run_long[runLength-1];
+    }
+
+    /**
+     * expands one of the segments held into out
+     * 
+     * @param index - 0 for this segment, 1..getNumSegments()-1 for the run
+     * @param out - receives the segment, without any run
+     * @return out
+     */
+    public CabTripSegment getSegment(int index, CabTripSegment out)
+    {
+        if (index == 0)
+        {
+            out.set(start_status, start_timestamp.get(), start_lat.get(), start_long.get(),
+                    end_status, end_timestamp.get(), end_lat.get(), end_long.get());
+        }
+        else if (index == 1)
+        {
+            out.set(STATUS_MOVING, end_timestamp.get(), end_lat.get(), end_long.get(),
+                    STATUS_MOVING, run_timestamp[0], run_lat[0], run_long[0]);
+        }
+        else
+        {
+            out.set(STATUS_MOVING, run_timestamp[index-2], run_lat[index-2], run_long[index-2],
+                    STATUS_MOVING, run_timestamp[index-1], run_lat[index-1], run_long[index-1]);
+        }
+        return out;
+    }
+
+    /**
+     * wire format, used for the shuffle:
+     * 
+     * 		- flags byte: start and end status codes, FLAG_DOUBLES, FLAG_RUN
+     * 		- start time as a vlong, then duration in seconds as a vlong
+     * 		- start latitude and longitude in micro-degrees as vints, then the end point
+     * 		  as vint deltas from the start; or, with FLAG_DOUBLES, four doubles
+     * 		- with FLAG_RUN, the run length as a vint then each run point as deltas from
+     * 		  the point before it: time as a vlong, latitude and longitude as vints
+     * 		  (doubles with FLAG_DOUBLES)
+     * 
+     * GPS input is read as whole micro-degrees, so the fixed-point form is exact; values
+     * which don't survive the round trip fall back to doubles. The start time is written
+     * in full, as a Writable can't see the key holding it.
+     */
     @Override
     public void write(DataOutput out) throws IOException {
-        start_status.write(out);
-        start_timestamp.write(out);
-        start_lat.write(out);
-        start_long.write(out);
-
-        end_status.write(out);
-        end_timestamp.write(out);
-        end_lat.write(out);
-        end_long.write(out);
+        int startCode = getStatusCode(start_status);
+        int endCode = getStatusCode(end_status);
+        boolean doubles = !isFixedPoint();
+
+        int flags = startCode | (endCode << END_STATUS_SHIFT);
+        if (doubles)
+            flags |= FLAG_DOUBLES;
+        if (runLength > 0)
+            flags |= FLAG_RUN;
+        out.writeByte(flags);
+        if (startCode == CODE_OTHER)
+            start_status.write(out);
+        if (endCode == CODE_OTHER)
+            end_status.write(out);
+
+        long ts = start_timestamp.get();
+        WritableUtils.writeVLong(out, ts);
+        WritableUtils.writeVLong(out, end_timestamp.get() - ts);
+        ts = end_timestamp.get();
+
+        int lat = 0;
+        int lng = 0;
+        if (doubles)
+        {
+            out.writeDouble(start_lat.get());
+            out.writeDouble(start_long.get());
+            out.writeDouble(end_lat.get());
+            out.writeDouble(end_long.get());
+        }
+        else
+        {
+            lat = GpsCoordinates.toMicroDegrees(start_lat.get());
+            lng = GpsCoordinates.toMicroDegrees(start_long.get());
+            WritableUtils.writeVInt(out, lat);
+            WritableUtils.writeVInt(out, lng);
+
+            int end_lat_e6 = GpsCoordinates.toMicroDegrees(end_lat.get());
+            int end_long_e6 = GpsCoordinates.toMicroDegrees(end_long.get());
+            WritableUtils.writeVInt(out, end_lat_e6 - lat);
+            WritableUtils.writeVInt(out, end_long_e6 - lng);
+            lat = end_lat_e6;
+            lng = end_long_e6;
+        }
+
+        if (runLength == 0)
+            return;
+        WritableUtils.writeVInt(out, runLength);
+        for (int i = 0; i < runLength; i++)
+        {
+            WritableUtils.writeVLong(out, run_timestamp[i] - ts);
+            ts = run_timestamp[i];
+            if (doubles)
+            {
+                out.writeDouble(run_lat[i]);
+                out.writeDouble(run_long[i]);
+            }
+            else
+            {
+                int point_lat = GpsCoordinates.toMicroDegrees(run_lat[i]);
+                int point_long = GpsCoordinates.toMicroDegrees(run_long[i]);
+                WritableUtils.writeVInt(out, point_lat - lat);
+                WritableUtils.writeVInt(out, point_long - lng);
+                lat = point_lat;
+                lng = point_long;
+            }
+        }
     }
 
     @Override
     public void readFields(DataInput in) throws IOException {
-        start_status.readFields(in);
-        start_timestamp.readFields(in);
-        start_lat.readFields(in);
-        start_long.readFields(in);
-
-        end_status.readFields(in);
-        end_timestamp.readFields(in);
-        end_lat.readFields(in);
-        end_long.readFields(in);
+        int flags = in.readUnsignedByte();
+        readStatus(in, flags & 3, start_status);
+        readStatus(in, (flags >> END_STATUS_SHIFT) & 3, end_status);
+
+        long ts = WritableUtils.readVLong(in);
+        start_timestamp.set(ts);
+        ts += WritableUtils.readVLong(in);
+        end_timestamp.set(ts);
+
+        boolean doubles = (flags & FLAG_DOUBLES) != 0;
+        int lat = 0;
+        int lng = 0;
+        if (doubles)
+        {
+            start_lat.set(in.readDouble());
+            start_long.set(in.readDouble());
+            end_lat.set(in.readDouble());
+            end_long.set(in.readDouble());
+        }
+        else
+        {
+            lat = WritableUtils.readVInt(in);
+            lng = WritableUtils.readVInt(in);
+            start_lat.set(GpsCoordinates.toDegrees(lat));
+            start_long.set(GpsCoordinates.toDegrees(lng));
+
+            lat += WritableUtils.readVInt(in);
+            lng += WritableUtils.readVInt(in);
+            end_lat.set(GpsCoordinates.toDegrees(lat));
+            end_long.set(GpsCoordinates.toDegrees(lng));
+        }
+
+        runLength = 0;
+        if ((flags & FLAG_RUN) == 0)
+            return;
+        int n = WritableUtils.readVInt(in);
+        for (int i = 0; i < n; i++)
+        {
+            ts += WritableUtils.readVLong(in);
+            if (doubles)
+            {
+                appendToRun(ts, in.readDouble(), in.readDouble());
+            }
+            else
+            {
+                lat += WritableUtils.readVInt(in);
+                lng += WritableUtils.readVInt(in);
+                appendToRun(ts, GpsCoordinates.toDegrees(lat), GpsCoordinates.toDegrees(lng));
+            }
+        }
+    }
+
+    /**
+     * @return start status code | end status code << END_STATUS_SHIFT, as written in the
+     * wire format flags, so both statuses can be tested without creating Strings
+     */
+    public int getStatusCodes()
+    {
+        return getStatusCode(start_status) | (getStatusCode(end_status) << END_STATUS_SHIFT);
     }
+
+    /**
+     * @return wire format code for status
+     */
+    private static int getStatusCode(Text status)
+    {
+        if (status.getLength() == 0)
+            return CODE_NONE;
+        if (status.getLength() == 1)
+        {
+            byte c = status.getBytes()[0];
+            if (c == 'E')
+                return CODE_EMPTY;
+            if (c == 'M')
+                return CODE_MOVING;
+        }
+        return CODE_OTHER;
+    }
+
+    private static void readStatus(DataInput in, int code, Text status) throws IOException
+    {
+        switch (code)
+        {
+        case CODE_NONE:
+            status.clear();
+            break;
+        case CODE_EMPTY:
+            status.set(STATUS_EMPTY);
+            break;
+        case CODE_MOVING:
+            status.set(STATUS_MOVING);
+            break;
+        default:
+            status.readFields(in);
+        }
+    }
+
+    /**
+     * @return true if every coordinate held is a whole number of micro-degrees, so
+     * survives the fixed-point wire format unchanged
+     */
+    private boolean isFixedPoint()
+    {
+        if (!GpsCoordinates.isMicroDegrees(start_lat.get()) || !GpsCoordinates.isMicroDegrees(start_long.get()) ||
+            !GpsCoordinates.isMicroDegrees(end_lat.get()) || !GpsCoordinates.isMicroDegrees(end_long.get()))
+            return false;
+        for (int i = 0; i < runLength; i++)
+        {
+            if (!GpsCoordinates.isMicroDegrees(run_lat[i]) || !GpsCoordinates.isMicroDegrees(run_long[i]))
+                return false;
+        }
+        return true;
+    }
+
 	
 	@Override
 	public String toString()
@@ -0,0 +1,71 @@
+import java.io.IOException;
+
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+/**
+ * binary form of CabTrips output: a SequenceFile of taxi id and CabTripBuffer, whose
+ * columnar times and coordinates CabTripInputFormat reads back without formatting or
+ * parsing text. As for CabTripOutputFormat, summary output keeps only the start of
+ * each trip and its end, here as a single segment; times are always epoch seconds
+ *
+ * use setOutput to have the file block compressed, and so still splittable
+ */
+public class CabTripSequenceOutputFormat extends SequenceFileOutputFormat<Text, CabTripBuffer> {
+
+	/**
+	 * writes each trip, or its summary
+	 */
+	protected static class SummaryRecordWriter extends RecordWriter<Text, CabTripBuffer> {
+		private RecordWriter<Text, CabTripBuffer> out;
+		private CabTripBuffer summary = new CabTripBuffer();
+
+		public SummaryRecordWriter(RecordWriter<Text, CabTripBuffer> out)
+		{
+			this.out = out;
+		}
+
+		@Override
+		public void write(Text taxi, CabTripBuffer trip) throws IOException, InterruptedException
+		{
+			if (trip == null || trip.isEmpty())
+				return;
+			summary.setSummary(trip);
+			out.write(taxi, summary);
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) throws IOException, InterruptedException
+		{
+			out.close(context);
+		}
+	}
+
+
+	/**
+	 * set job's output format and types, with block compression
+	 */
+	public static void setOutput(Job job)
+	{
+		job.setOutputFormatClass(CabTripSequenceOutputFormat.class);
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(CabTripBuffer.class);
+		setCompressOutput(job, true);
+		setOutputCompressionType(job, CompressionType.BLOCK);
+	}
+
+
+	@Override
+	public RecordWriter<Text, CabTripBuffer> getRecordWriter(TaskAttemptContext context)
+			throws IOException, InterruptedException
+	{
+		RecordWriter<Text, CabTripBuffer> out = super.getRecordWriter(context);
+		if (context.getConfiguration().getBoolean(CabTripOutputFormat.SUMMARY_OUTPUT, true))
+			return new SummaryRecordWriter(out);
+		return out;
+	}
+}
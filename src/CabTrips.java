@@ -1,3 +1,11 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -7,9 +15,14 @@ import org.apache.commons.cli.UnrecognizedOptionException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -28,19 +41,60 @@ public class CabTrips extends Configured implements Tool{
 	private String outputPath = null;
 	
 	// returns output with only start and end GPS markers
-	protected static boolean summaryOutput = true;
+	protected boolean summaryOutput = true;
 	
 	// output timestamps as epoch time; alternative is the following format:
 	//
 	// YYYY-MM-DDTHH:mm:ssZ
 	// e.g. 2012-01-03T10:28+0300
 	//
-	protected static boolean epochTime = true;
+	protected boolean epochTime = true;
 
 	private int numReducers = 1;
 	
 	private long maxTripLength = -1L;
 	
+	// decode input records on a separate thread
+	private boolean prefetch = false;
+	
+	// pre-assemble partial trips of up to this many taxis at a time in each mapper
+	private int assembleTaxis = 0;
+	
+	// bounds for rejecting trips, "minLat,maxLat,minLong,maxLong"; calculated from the
+	// input if not given
+	private String geoBounds = null;
+	
+	// fraction of input splits read by the sampling pre-pass; 0 = no pre-pass
+	private float sampleFraction = 0f;
+	private final static int SAMPLE_THREADS = 4;
+	
+	// table of taxi<TAB>weight for balancing reducers, e.g. from an earlier sample
+	private String taxiWeights = null;
+	
+	// map threads per task; 1 = run CabTripMapper directly
+	private int mapThreads = 1;
+	
+	// decimal places shown for coordinates; -1 = as read
+	private int coordinateDecimals = -1;
+	
+	// write trips as a SequenceFile of CabTripBuffers rather than as text
+	private boolean binaryOutput = false;
+	
+	// fused mode: revenue (as CabTripRevenue) and length distribution (as CabTripDist)
+	// of the trips found, written to these paths; null = not wanted
+	private String revenuePath = null;
+	private String histogramPath = null;
+	private double initialCharge = 0d;
+	private double chargePerKm = 0d;
+	private String referenceName = null;
+	private double referenceLat = -9999d;
+	private double referenceLong = -9999d;
+	private double referenceRangeKm = -1d;
+	private String zones = null;
+	private double bandwidth = 0d;
+	private double maxDist = 0d;
+	private boolean straightLine = false;
+	
 	private static Options buildOptions()
 	{
 		Options options = new Options();
@@ -52,6 +106,21 @@ public class CabTrips extends Configured implements Tool{
 		options.addOption("o", "output", true, "output path");
 		options.addOption("r", "reducers", true, "number of reducers");
 		options.addOption("m", "max-trip-length", true, "maximum trip length HH:MM");
+		options.addOption("P", "prefetch", false, "decode input records on a separate thread");
+		options.addOption("a", "assemble", true, "pre-assemble partial trips of up to n taxis at a time in the mapper (default: off)");
+		options.addOption("b", "bounds", true, "reject trips outside minLat,maxLat,minLong,maxLong (default: from input)");
+		options.addOption("E", "sample", true, "sample this fraction of the input splits before the job, to estimate trip bounds and taxi volumes");
+		options.addOption("W", "weights", true, "balance reducers using this table of taxi<TAB>weight (default: from -E)");
+		options.addOption("t", "threads", true, "map threads per task (default: 1)");
+		options.addOption("p", "precision", true, "decimal places shown for coordinates (default: as read)");
+		options.addOption("B", "binary", false, "write trips as a block-compressed SequenceFile for CabTripRevenue and CabTripDist");
+		options.addOption("R", "revenue", true, "also write trip revenues, as CabTripRevenue would, to this path (needs -C)");
+		options.addOption("C", "charge", true, "taxi charge for -R (format: <initial charge>,<cost-per-km>)");
+		options.addOption("L", "location", true, "reference location for -R, and range from ref (format: <string-ref>,<lat>,<long>,<range-km>)");
+		options.addOption("Z", "zones", true, "time zones for -R human readable dates, comma separated (default: zone of the first trip)");
+		options.addOption("H", "histogram", true, "also write the trip length distribution, as CabTripDist would, to this path (needs -w)");
+		options.addOption("w", "bands", true, "length bands for -H (format: <width>,<maxdist>)");
+		options.addOption("S", "straight-line", false, "use straight line distance for -R and -H");
 		
 		return options;
 	}
@@ -154,11 +223,164 @@ public class CabTrips extends Configured implements Tool{
 			}
 			maxTripLength = a * 3600 + b;
 		}
+		
+		if (cmd.hasOption("P"))
+			prefetch = true;
+
+		// in-mapper trip assembly
+		if (cmd.hasOption("a")) {
+			assembleTaxis = Integer.parseInt(cmd.getOptionValue("a"));
+			if (assembleTaxis <= 0)
+			{
+				theLogger.log(Level.INFO, "Invalid -a option");
+				help(options);
+			}
+		}
+
+		// trip bounds
+		if (cmd.hasOption("b")) {
+			geoBounds = cmd.getOptionValue("b");
+			String[] bits = geoBounds.split(",");
+			if (bits.length != 4)
+			{
+				theLogger.log(Level.INFO, "Invalid -b option");
+				help(options);
+			}
+			
+			double minLat = Double.parseDouble(bits[0]);
+			double maxLat = Double.parseDouble(bits[1]);
+			double minLong = Double.parseDouble(bits[2]);
+			double maxLong = Double.parseDouble(bits[3]);
+			
+			// written so that NaN fails too
+			if (!(minLat < maxLat && minLong < maxLong)
+			||  minLat < -90d || maxLat > 90d 
+			||  minLong < -180d || maxLong > 180d)
+			{
+				theLogger.log(Level.INFO, "Invalid lat/long bounds");
+				help(options);
+			}
+		}
+
+		// sampling pre-pass
+		if (cmd.hasOption("E")) {
+			sampleFraction = Float.parseFloat(cmd.getOptionValue("E"));
+			if (sampleFraction <= 0f || sampleFraction > 1f)
+			{
+				theLogger.log(Level.INFO, "Invalid -E option");
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("W"))
+			taxiWeights = cmd.getOptionValue("W");
+
+		// multithreaded map
+		if (cmd.hasOption("t")) {
+			mapThreads = Integer.parseInt(cmd.getOptionValue("t"));
+			if (mapThreads <= 0)
+			{
+				theLogger.log(Level.INFO, "Invalid -t option");
+				help(options);
+			}
+		}
+
+		// output precision
+		if (cmd.hasOption("p")) {
+			coordinateDecimals = Integer.parseInt(cmd.getOptionValue("p"));
+			if (coordinateDecimals < 0)
+			{
+				theLogger.log(Level.INFO, "Invalid -p option");
+				help(options);
+			}
+		}
+
+		// binary output
+		if (cmd.hasOption("B"))
+			binaryOutput = true;
+
+		// fused revenue
+		if (cmd.hasOption("R")) {
+			revenuePath = cmd.getOptionValue("R");
+			String[] bits = cmd.hasOption("C") ? cmd.getOptionValue("C").split(",") : new String[0];
+			if (bits.length < 2)
+			{
+				theLogger.log(Level.INFO, "Invalid -C option");
+				help(options);
+			}
+			
+			initialCharge = Double.parseDouble(bits[0]);
+			chargePerKm = Double.parseDouble(bits[1]);
+			if (initialCharge < 0d || chargePerKm <= 0d)
+			{
+				theLogger.log(Level.INFO, "Bad trip charge values");
+				help(options);
+			}
+		}
+
+		if (cmd.hasOption("L")) {
+			String[] bits = cmd.getOptionValue("L").split(",");
+			if (bits.length < 4)
+			{
+				theLogger.log(Level.INFO, "Invalid -L option");
+				help(options);
+			}
+			
+			referenceName = bits[0];
+			referenceLat = Double.parseDouble(bits[1]);
+			referenceLong = Double.parseDouble(bits[2]);
+			referenceRangeKm = Double.parseDouble(bits[3]);
+			
+			if (Math.abs(referenceLat) >= 90d 
+			||  Math.abs(referenceLong) > 180d 
+			||  referenceRangeKm <= 0d)
+			{
+				theLogger.log(Level.INFO, "Invalid lat/long or range");
+				help(options);
+			}
+		}
+		
+		if (cmd.hasOption("Z"))
+			zones = cmd.getOptionValue("Z");
+
+		// the charge, reference location and zones only apply to the fused revenue
+		if (revenuePath == null && (cmd.hasOption("C") || cmd.hasOption("L") || cmd.hasOption("Z")))
+		{
+			theLogger.log(Level.INFO, "-C, -L and -Z need -R");
+			help(options);
+		}
+
+		// fused length distribution
+		if (cmd.hasOption("H")) {
+			histogramPath = cmd.getOptionValue("H");
+			String[] bits = cmd.hasOption("w") ? cmd.getOptionValue("w").split(",") : new String[0];
+			if (bits.length < 2)
+			{
+				theLogger.log(Level.INFO, "Invalid -w option");
+				help(options);
+			}
+			
+			bandwidth = Double.parseDouble(bits[0]);
+			maxDist = Double.parseDouble(bits[1]);
+			if (bandwidth <= 0d || maxDist <= 0d || (int)(maxDist % bandwidth) != 0)
+			{
+				theLogger.log(Level.INFO, "Invalid -w option");
+				help(options);
+			}
+		}
+		else if (cmd.hasOption("w"))
+		{
+			theLogger.log(Level.INFO, "-w needs -H");
+			help(options);
+		}
+		
+		if (cmd.hasOption("S"))
+			straightLine = true;
 	}
 	
 	public int run(String[] args) throws Exception {
 
-		Configuration conf = new Configuration();
+		Configuration conf = getConf();
 		
 		processArgs(args);
 		
@@ -167,30 +389,74 @@ public class CabTrips extends Configured implements Tool{
         conf.set("mapreduce.textoutputformat.separator", " "); 
         conf.set("mapred.textoutputformat.separator", " ");
         
-        conf.setBoolean("summaryOutput", summaryOutput);
-		conf.setBoolean("epochTime", epochTime);
+        conf.setBoolean(CabTripOutputFormat.SUMMARY_OUTPUT, summaryOutput);
+		conf.setBoolean(CabTripOutputFormat.EPOCH_TIME, epochTime);
+		conf.setInt(CabTripOutputFormat.COORDINATE_DECIMALS, coordinateDecimals);
 		conf.setLong("maxTripLength", maxTripLength);
+		conf.setBoolean(GpsSegmentRecordReader.PREFETCH, prefetch);
+		conf.setInt(CabTripMapper.ASSEMBLE_TAXIS, assembleTaxis);
 
-		String geoDataFilePath = "hdfs:/tmp/cabtrips-geodata.csv";
-		conf.set("geoDataFilePath", geoDataFilePath);
-
+		// fused mode; settings as for CabTripRevenue and CabTripDist
+		conf.setBoolean(CabTripReducer.STRAIGHT_LINE, straightLine);
+		if (revenuePath != null)
+		{
+			conf.setBoolean(CabTripReducer.FUSED_REVENUE, true);
+			if (referenceName != null)
+			{
+				conf.setBoolean("useReference", true);
+				conf.set("reference_name", referenceName);
+				conf.setDouble("reference_lat", referenceLat);
+				conf.setDouble("reference_long", referenceLong);
+				conf.setDouble("reference_range", referenceRangeKm);
+			}
+			conf.setDouble("taxi_start_charge", initialCharge);
+			conf.setDouble("taxi_charge_per_unit_dist", chargePerKm);
+			conf.setBoolean("CabTripRevenue.epochTime", epochTime);
+			if (zones != null)
+				conf.set(CabTripRevenueRecord.ZONES, zones);
+		}
+		if (histogramPath != null)
+		{
+			conf.setBoolean(CabTripReducer.FUSED_BANDS, true);
+			conf.setStrings("unit", "K");
+			conf.setDouble("sanityLimit", 200d);
+			conf.setDouble("maxDist", maxDist);
+			conf.setDouble("bandwidth", bandwidth);
+		}
 
 		conf.addResource(new Path("/HADOOP_HOME/conf/core-site.xml"));
 		conf.addResource(new Path("/HADOOP_HOME/conf/hdfs-site.xml"));
 
-		try{
-			Path pt=new Path(geoDataFilePath);
-			FileSystem fs = FileSystem.get(conf);
-			fs.delete(pt);
-		}
-		catch (Exception e)
-		{
-		}
+		// mappers write lat/long stats for the reducers here, unless bounds are given
+		FileSystem fs = FileSystem.get(conf);
+		Path geoDataDir = fs.makeQualified(new Path(outputPath, "_geodata"));
+		if (geoBounds != null)
+			conf.set(CabTripReducer.GEO_BOUNDS, geoBounds);
+		else
+			conf.set(CabTripReducer.GEO_DATA_DIR, geoDataDir.toString());
+
+		// scratch files for the job
+		Path workDir = fs.makeQualified(new Path(conf.get("hadoop.tmp.dir"), "cabtrips-"+System.currentTimeMillis()));
 
  		Job job = Job.getInstance(conf, "Cab trip builder");
 	    FileInputFormat.addInputPath(job, new Path(inputPath));
 		FileOutputFormat.setOutputPath(job, new Path(outputPath));
 
+		if (sampleFraction > 0f)
+			sampleInput(job, fs, workDir);
+
+		// balance reducer loads by taxi weight
+		if (taxiWeights != null)
+			job.getConfiguration().set(CabIDTimestampPartitioner.TAXI_WEIGHTS, taxiWeights);
+		String weights = job.getConfiguration().get(CabIDTimestampPartitioner.TAXI_WEIGHTS);
+		if (weights != null && numReducers > 1)
+		{
+			Path plan = new Path(workDir, "taxi-plan.txt");
+			CabIDTimestampPartitioner.createPlan(conf, new Path(weights), plan, numReducers);
+			job.getConfiguration().set(CabIDTimestampPartitioner.PLAN, plan.toString());
+			job.addCacheFile(new URI(plan.toString()+"#"+CabIDTimestampPartitioner.PLAN_LINK));
+		}
+
 		// use user-supplied number of reduce tasks
 		if (numReducers > 1)
 		{
@@ -200,23 +466,155 @@ public class CabTrips extends Configured implements Tool{
 		job.setJarByClass(CabTrips.class);
 		job.setJobName("CabTrips ["+inputPath+"], R"+Integer.toString(numReducers));
 
-		job.setOutputKeyClass(CabIDTimestamp.class);
-		job.setOutputValueClass(CabTripSegment.class);
+		job.setInputFormatClass(GpsSegmentInputFormat.class);
+		job.setMapOutputKeyClass(CabIDTimestamp.class);
+		job.setMapOutputValueClass(CabTripSegment.class);
+		if (binaryOutput)
+			CabTripSequenceOutputFormat.setOutput(job);
+		else
+		{
+			job.setOutputKeyClass(Text.class);
+			job.setOutputValueClass(CabTripBuffer.class);
+			job.setOutputFormatClass(CabTripOutputFormat.class);
+		}
 		
-    	job.setMapperClass(CabTripMapper.class);
+    	// each thread has its own mapper, and map output order doesn't matter as the
+    	// shuffle sorts it
+    	if (mapThreads > 1)
+    	{
+    		job.setMapperClass(MultithreadedMapper.class);
+    		MultithreadedMapper.setMapperClass(job, CabTripMapper.class);
+    		MultithreadedMapper.setNumberOfThreads(job, mapThreads);
+    	}
+    	else
+    		job.setMapperClass(CabTripMapper.class);
     	job.setReducerClass(CabTripReducer.class);		
     	job.setPartitionerClass(CabIDTimestampPartitioner.class);
     	job.setGroupingComparatorClass(CabIDTimestampComp.class);
     	job.setCombinerClass(CabIDCombiner.class);
     	job.setCombinerKeyGroupingComparatorClass(CabIDCombinerGroupComp.class);
     	job.setSortComparatorClass(CabIDTimestampSortComp.class);
+    	
+    	// fused mode results, for the follow-up jobs below
+    	if (revenuePath != null)
+    		MultipleOutputs.addNamedOutput(job, CabTripReducer.REVENUE_OUTPUT, SequenceFileOutputFormat.class,
+    			CabTripRevenueRecord.class, Text.class);
+    	if (histogramPath != null)
+    		MultipleOutputs.addNamedOutput(job, CabTripReducer.BANDS_OUTPUT, SequenceFileOutputFormat.class,
+    			IntWritable.class, IntWritable.class);
 
 		boolean status = job.waitForCompletion(true);
 		theLogger.info("run(): status="+status);
+
+		// the per-trip work is done; these only sort the revenues into one file and add
+		// up the band counts of the reducers. The directories are hidden from jobs
+		// reading the trips, so their files are named explicitly
+		Path revenueDir = new Path(outputPath, CabTripReducer.REVENUE_DIR);
+		if (status && revenuePath != null && fs.exists(revenueDir))
+		{
+			Job sortJob = CabTripRevenue.createSortJob(conf, new Path(revenueDir, "part-*"), new Path(outputPath), new Path(revenuePath));
+			status = sortJob.waitForCompletion(true);
+			theLogger.info("run(): revenue status="+status);
+		}
+		Path bandsDir = new Path(outputPath, CabTripReducer.BANDS_DIR);
+		if (status && histogramPath != null)
+		{
+			Job sumJob = CabTripDist.createSumJob(conf, new Path(bandsDir, "part-*"), new Path(histogramPath));
+			status = sumJob.waitForCompletion(true);
+			theLogger.info("run(): histogram status="+status);
+		}
+
+		try {
+			fs.delete(geoDataDir, true);
+			fs.delete(revenueDir, true);
+			fs.delete(bandsDir, true);
+			fs.delete(workDir, true);
+		}
+		catch (Exception e)
+		{
+		}
+
 		return status ? 0 : 1;
 	}
 
 	
+	
+	/**
+	 * gathers geodata stats and per-taxi record counts from sampled input
+	 */
+	private static class InputStats implements SplitSampler.Visitor<IntWritable, CabTripSegment> {
+		RunningMoments latitude = new RunningMoments();
+		RunningMoments longitude = new RunningMoments();
+		TreeMap<Integer, Long> taxiCounts = new TreeMap<Integer, Long>();
+
+		@Override
+		public void visit(IntWritable key, CabTripSegment value) {
+			// count records as CabTripMapper would
+			if (!CabTripMapper.isUseful(value))
+				return;
+
+			latitude.add(value.getStart_lat().get());
+			latitude.add(value.getEnd_lat().get());
+			longitude.add(value.getStart_long().get());
+			longitude.add(value.getEnd_long().get());
+
+			Long n = taxiCounts.get(key.get());
+			taxiCounts.put(key.get(), n == null ? 1L : n + 1L);
+		}
+
+		void merge(InputStats other) {
+			latitude.merge(other.latitude);
+			longitude.merge(other.longitude);
+			for (Map.Entry<Integer, Long> e : other.taxiCounts.entrySet())
+			{
+				Long n = taxiCounts.get(e.getKey());
+				taxiCounts.put(e.getKey(), n == null ? e.getValue() : n + e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * sampling pre-pass: reads a fraction of the input splits to set the bounds for
+	 * rejecting trips (unless given with -b), and writes a table of per-taxi record
+	 * counts for the partitioner
+	 * 
+	 * @param job
+	 * @param fs
+	 * @param workDir - job scratch directory
+	 */
+	private void sampleInput(Job job, FileSystem fs, Path workDir) throws IOException, InterruptedException
+	{
+		List<InputStats> samples = SplitSampler.sample(job, new GpsSegmentInputFormat(), sampleFraction, SAMPLE_THREADS,
+			new SplitSampler.VisitorFactory<IntWritable, CabTripSegment, InputStats>() {
+				@Override
+				public InputStats create() {
+					return new InputStats();
+				}
+			});
+
+		InputStats stats = new InputStats();
+		for (InputStats sample : samples)
+			stats.merge(sample);
+		theLogger.info("Sampled "+stats.latitude.getCount()/2+" records of "+stats.taxiCounts.size()+" taxis");
+
+		Configuration conf = job.getConfiguration();
+		if (geoBounds == null)
+		{
+			double[] b = CabTripReducer.getBounds(stats.latitude, stats.longitude);
+			conf.set(CabTripReducer.GEO_BOUNDS, b[0]+","+b[1]+","+b[2]+","+b[3]);
+		}
+
+		// taxi<TAB>records
+		Path weights = new Path(workDir, "taxi-weights.txt");
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fs.create(weights, true)));
+		try {
+			for (Map.Entry<Integer, Long> e : stats.taxiCounts.entrySet())
+				out.write(e.getKey()+"\t"+e.getValue()+"\n");
+		} finally {
+			out.close();
+		}
+		conf.set(CabIDTimestampPartitioner.TAXI_WEIGHTS, weights.toString());
+	}
 
 	/**
 	* The main driver for word count map/reduce program.
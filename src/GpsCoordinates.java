@@ -0,0 +1,147 @@
+
+/**
+ * decodes decimal latitude/longitude values straight from input bytes into
+ * fixed-point micro-degrees, validating the range as it goes
+ *
+ * GPS samples carry at most six decimal places, so a micro-degree int holds them
+ * exactly; any further digits are rounded (1 micro-degree is about 11cm)
+ */
+public final class GpsCoordinates
+{
+	private GpsCoordinates() {}
+
+	public static final int SCALE = 1000000;
+	public static final int SCALE_DIGITS = 6;
+
+	public static final int MAX_LATITUDE = 90 * SCALE;
+	public static final int MAX_LONGITUDE = 180 * SCALE;
+
+	// returned for malformed or out of range input
+	public static final int INVALID = Integer.MIN_VALUE;
+
+
+	/**
+	 * @param b - input buffer
+	 * @param offset - start of value
+	 * @param length - length of value
+	 * @return latitude in micro-degrees, or INVALID if malformed or |lat| > 90
+	 */
+	public static int parseLatitude(byte[] b, int offset, int length)
+	{
+		return parseMicroDegrees(b, offset, length, MAX_LATITUDE);
+	}
+
+	/**
+	 * @param b - input buffer
+	 * @param offset - start of value
+	 * @param length - length of value
+	 * @return longitude in micro-degrees, or INVALID if malformed or |lng| > 180
+	 */
+	public static int parseLongitude(byte[] b, int offset, int length)
+	{
+		return parseMicroDegrees(b, offset, length, MAX_LONGITUDE);
+	}
+
+	/**
+	 * parses a plain decimal number, e.g. "-122.40255", into micro-degrees;
+	 * numbers with exponents are treated as malformed
+	 *
+	 * @param b - input buffer
+	 * @param offset - start of value
+	 * @param length - length of value
+	 * @param limit - largest permitted absolute value in micro-degrees
+	 * @return value in micro-degrees, or INVALID
+	 */
+	public static int parseMicroDegrees(byte[] b, int offset, int length, int limit)
+	{
+		int pos = offset;
+		int end = offset + length;
+
+		while (pos < end && b[pos] <= ' ')
+			pos++;
+		while (end > pos && b[end-1] <= ' ')
+			end--;
+
+		boolean negative = false;
+		if (pos < end && (b[pos] == '-' || b[pos] == '+'))
+		{
+			negative = (b[pos] == '-');
+			pos++;
+		}
+
+		long whole = 0L;
+		long fraction = 0L;
+		int digits = 0;
+		int decimals = -1;
+		boolean roundUp = false;
+		for (; pos < end; pos++)
+		{
+			int d = b[pos] - '0';
+			if (d >= 0 && d <= 9)
+			{
+				digits++;
+				if (decimals < 0)
+				{
+					whole = whole * 10 + d;
+					if (whole > limit / SCALE)
+						return INVALID;
+				}
+				else if (decimals < SCALE_DIGITS)
+				{
+					fraction = fraction * 10 + d;
+					decimals++;
+				}
+				else if (decimals++ == SCALE_DIGITS)
+					roundUp = (d >= 5);
+			}
+			else if (b[pos] == '.' && decimals < 0)
+				decimals = 0;
+			else
+				return INVALID;
+		}
+
+		if (digits == 0)
+			return INVALID;
+
+		// scale up whatever is missing from the last six decimal places
+		for (; decimals < SCALE_DIGITS; decimals++)
+			fraction *= 10;
+
+		long value = whole * SCALE + fraction;
+		if (roundUp)
+			value++;
+		if (value > limit)
+			return INVALID;
+
+		return negative ? (int) -value : (int) value;
+	}
+
+
+	/**
+	 * @param microDegrees
+	 * @return value in degrees; identical to Double.parseDouble of the decimal input
+	 */
+	public static double toDegrees(int microDegrees)
+	{
+		return microDegrees / (double) SCALE;
+	}
+
+	/**
+	 * @param degrees
+	 * @return value rounded to the nearest micro-degree
+	 */
+	public static int toMicroDegrees(double degrees)
+	{
+		return (int) Math.round(degrees * SCALE);
+	}
+
+	/**
+	 * @param degrees
+	 * @return true if degrees is a whole number of micro-degrees, so survives
+	 * toMicroDegrees and toDegrees unchanged
+	 */
+	public static boolean isMicroDegrees(double degrees)
+	{
+		return Double.doubleToLongBits(toDegrees(toMicroDegrees(degrees))) == Double.doubleToLongBits(degrees);
+	}
+}
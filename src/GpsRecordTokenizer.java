@@ -0,0 +1,148 @@
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * splits a raw GPS record into its comma-separated fields in a single pass over the
+ * backing byte array of the input, without creating any String or array objects
+ *
+ * single quotes around a field, and whitespace at either end of the record, are not
+ * part of the field; field bounds are recorded as offsets into the input bytes so
+ * that they can be handed directly to the numeric parsers, e.g. GpsCoordinates
+ */
+public class GpsRecordTokenizer {
+
+	// more fields than this are counted, but their bounds are not kept
+	public final static int MAX_FIELDS = 16;
+
+	private final static byte QUOTE = '\'';
+	private final static byte COMMA = ',';
+
+	private byte[] bytes = null;
+	private int numFields = 0;
+	private int[] fieldStart = new int[MAX_FIELDS];
+	private int[] fieldEnd = new int[MAX_FIELDS];
+
+
+	/**
+	 * @param value - raw GPS record
+	 * @return number of fields found
+	 */
+	public int tokenize(Text value)
+	{
+		return tokenize(value.getBytes(), 0, value.getLength());
+	}
+
+
+	/**
+	 * @param b - buffer holding the record
+	 * @param offset - start of record in buffer
+	 * @param length - length of record
+	 * @return number of fields found
+	 */
+	public int tokenize(byte[] b, int offset, int length)
+	{
+		bytes = b;
+		numFields = 0;
+
+		int pos = offset;
+		int limit = offset + length;
+
+		// trim record
+		while (pos < limit && (b[pos] <= ' ' || b[pos] == QUOTE))
+			pos++;
+		while (limit > pos && (b[limit-1] <= ' ' || b[limit-1] == QUOTE))
+			limit--;
+
+		if (pos == limit)
+			return 0;
+
+		int start = pos;
+		for (; pos <= limit; pos++)
+		{
+			if (pos == limit || b[pos] == COMMA)
+			{
+				addField(start, pos);
+				start = pos + 1;
+			}
+		}
+
+		return numFields;
+	}
+
+	/**
+	 * records the bounds of a field, less any surrounding quotes
+	 */
+	private void addField(int start, int end)
+	{
+		if (numFields < MAX_FIELDS)
+		{
+			while (start < end && bytes[start] == QUOTE)
+				start++;
+			while (end > start && bytes[end-1] == QUOTE)
+				end--;
+
+			fieldStart[numFields] = start;
+			fieldEnd[numFields] = end;
+		}
+		numFields++;
+	}
+
+
+	public int getNumFields() {
+		return numFields;
+	}
+
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public int getStart(int field) {
+		return fieldStart[field];
+	}
+
+	public int getLength(int field) {
+		return fieldEnd[field] - fieldStart[field];
+	}
+
+
+	/**
+	 * @param field - field index
+	 * @param c - single character e.g. a status code
+	 * @return true if the field consists of exactly the character c
+	 */
+	public boolean isChar(int field, char c)
+	{
+		return getLength(field) == 1 && bytes[fieldStart[field]] == (byte) c;
+	}
+
+
+	/**
+	 * @return true if both fields hold identical bytes
+	 */
+	public boolean fieldsEqual(int field1, int field2)
+	{
+		int len = getLength(field1);
+		if (len != getLength(field2))
+			return false;
+
+		int p1 = fieldStart[field1];
+		int p2 = fieldStart[field2];
+		for (int i = 0; i < len; i++)
+			if (bytes[p1 + i] != bytes[p2 + i])
+				return false;
+		return true;
+	}
+
+
+	/**
+	 * returns a field as a String; only for use outside of the per-record path
+	 *
+	 * @param field
+	 * @return
+	 */
+	public String getString(int field)
+	{
+		return new String(bytes, fieldStart[field], getLength(field), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,38 @@
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+/**
+ * reads raw GPS records of the form
+ *
+ * 		<taxi>,'<date>',lat,lng,'S','<date>',lat,lng,'S'
+ *
+ * and presents each one as a numeric taxi id and a decoded CabTripSegment, so that
+ * mappers do not need to parse text; splits and compressed input are handled as for
+ * TextInputFormat
+ */
+public class GpsSegmentInputFormat extends FileInputFormat<IntWritable, CabTripSegment> {
+
+	@Override
+	public RecordReader<IntWritable, CabTripSegment> createRecordReader(InputSplit split,
+			TaskAttemptContext context)
+	{
+		return new GpsSegmentRecordReader();
+	}
+
+	@Override
+	protected boolean isSplitable(JobContext context, Path file)
+	{
+		CompressionCodec codec = new CompressionCodecFactory(context.getConfiguration()).getCodec(file);
+		if (codec == null)
+			return true;
+		return codec instanceof SplittableCompressionCodec;
+	}
+}
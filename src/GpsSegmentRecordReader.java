@@ -0,0 +1,320 @@
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.apache.log4j.Logger;
+
+/**
+ * decodes raw GPS records from the lines of a split into a reusable CabTripSegment
+ * and numeric taxi id; malformed records are skipped
+ *
+ * taxi ids are carried as ints and written out by CabTripReducer in decimal, so only
+ * ids in their canonical form, 0 to Integer.MAX_VALUE with no sign or leading zeros,
+ * are accepted; records with other ids are skipped and counted in the log
+ *
+ * with GpsSegmentInputFormat.prefetch set, decoding is done by a separate thread
+ * which passes batches of records to the mapper thread
+ */
+public class GpsSegmentRecordReader extends RecordReader<IntWritable, CabTripSegment> {
+
+	private static Logger theLogger = Logger.getLogger(GpsSegmentRecordReader.class);
+
+	private final static Text STATUS_EMPTY = new Text("E");
+	private final static Text STATUS_MOVING = new Text("M");
+
+	// decode records on a separate thread, ahead of the mapper
+	public final static String PREFETCH = "GpsSegmentInputFormat.prefetch";
+
+	private final static int BATCH_SIZE = 1024;
+	private final static int NUM_BATCHES = 4;
+
+	private LineRecordReader lineReader = new LineRecordReader();
+	private GpsRecordTokenizer tokenizer = new GpsRecordTokenizer();
+	private GpsTimestampParser timestampParser = null;
+	private Configuration conf;
+
+	private IntWritable taxi_id = new IntWritable();
+	private CabTripSegment seg = new CabTripSegment();
+	// records skipped for an id that would not be written back as read
+	private long badTaxiIDs = 0L;
+
+	// prefetch state
+	private BlockingQueue<Batch> fullBatches = null;
+	private BlockingQueue<Batch> freeBatches = null;
+	private Thread decoder = null;
+	private volatile Throwable decoderFailure = null;
+	private Batch current = null;
+
+
+	/**
+	 * records decoded ahead of the mapper
+	 */
+	private static class Batch {
+		final IntWritable[] keys = new IntWritable[BATCH_SIZE];
+		final CabTripSegment[] values = new CabTripSegment[BATCH_SIZE];
+		int size = 0;
+		int pos = 0;
+		boolean last = false;
+
+		Batch() {
+			for (int i = 0; i < BATCH_SIZE; i++)
+			{
+				keys[i] = new IntWritable();
+				values[i] = new CabTripSegment();
+			}
+		}
+	}
+
+
+	@Override
+	public void initialize(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException
+	{
+		conf = context.getConfiguration();
+		lineReader.initialize(split, context);
+
+		if (conf.getBoolean(PREFETCH, false))
+			startDecoder();
+	}
+
+
+	@Override
+	public boolean nextKeyValue() throws IOException, InterruptedException
+	{
+		if (decoder == null)
+			return decodeNext(taxi_id, seg);
+
+		while (current == null || current.pos == current.size)
+		{
+			if (current != null)
+			{
+				if (current.last)
+				{
+					checkDecoder();
+					return false;
+				}
+				freeBatches.put(current);
+			}
+			current = fullBatches.take();
+		}
+		current.pos++;
+		return true;
+	}
+
+	@Override
+	public IntWritable getCurrentKey() {
+		if (decoder == null)
+			return taxi_id;
+		return current.keys[current.pos - 1];
+	}
+
+	@Override
+	public CabTripSegment getCurrentValue() {
+		if (decoder == null)
+			return seg;
+		return current.values[current.pos - 1];
+	}
+
+	@Override
+	public float getProgress() throws IOException {
+		return lineReader.getProgress();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (decoder != null)
+		{
+			decoder.interrupt();
+			try {
+				decoder.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		lineReader.close();
+
+		if (badTaxiIDs > 0)
+			theLogger.warn("GpsSegmentRecordReader: skipped "+badTaxiIDs+" records with a taxi id that is not a canonical non-negative int");
+	}
+
+
+	/**
+	 * reads lines until one decodes successfully
+	 *
+	 * @return false at end of split
+	 */
+	private boolean decodeNext(IntWritable key, CabTripSegment value) throws IOException
+	{
+		while (lineReader.nextKeyValue())
+		{
+			if (decode(lineReader.getCurrentValue(), key, value))
+				return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * <taxi-id>, <start date>, <start pos (lat)>, <start pos (long)>, <start status> . . .
+	 * . . . <end date> <end pos (lat)> <end pos (long)> <end status>
+	 *
+	 * @param line - raw record
+	 * @param key - receives taxi id
+	 * @param value - receives segment
+	 * @return false if the record is malformed
+	 */
+	private boolean decode(Text line, IntWritable key, CabTripSegment value)
+	{
+		// discard records with too few fields
+		if (tokenizer.tokenize(line) < 9)
+			return false;
+
+		// status codes must be "E" or "M"
+		Text start_status = getStatus(4);
+		Text end_status = getStatus(8);
+		if (start_status == null || end_status == null)
+			return false;
+
+		int taxi = parseTaxiID();
+		if (taxi < 0)
+		{
+			badTaxiIDs++;
+			return false;
+		}
+
+		// coordinates are decoded as micro-degrees, and rejected if outside permitted range
+		byte[] bytes = tokenizer.getBytes();
+		int start_lat = GpsCoordinates.parseLatitude(bytes, tokenizer.getStart(2), tokenizer.getLength(2));
+		int start_long = GpsCoordinates.parseLongitude(bytes, tokenizer.getStart(3), tokenizer.getLength(3));
+		int end_lat = GpsCoordinates.parseLatitude(bytes, tokenizer.getStart(6), tokenizer.getLength(6));
+		int end_long = GpsCoordinates.parseLongitude(bytes, tokenizer.getStart(7), tokenizer.getLength(7));
+		if (start_lat == GpsCoordinates.INVALID || start_long == GpsCoordinates.INVALID ||
+			end_lat == GpsCoordinates.INVALID || end_long == GpsCoordinates.INVALID)
+			return false;
+
+		// create date parser if needed; timezone is taken from the first good record
+		if (timestampParser == null)
+		{
+			double lat = GpsCoordinates.toDegrees(start_lat);
+			double lng = GpsCoordinates.toDegrees(start_long);
+			String tz = TimezoneMapper.latLngToTimezoneString(lat, lng);
+			conf.set("tz", tz);
+
+			theLogger.info("GpsSegmentRecordReader: Using timezone ["+tz+"] from coordinates ("+Double.toString(lat)+","+Double.toString(lng)+")");
+			timestampParser = new GpsTimestampParser(TimeZone.getTimeZone(tz));
+		}
+
+		long start_epoch;
+		long end_epoch;
+		try {
+			start_epoch = timestampParser.parse(bytes, tokenizer.getStart(1), tokenizer.getLength(1));
+			end_epoch = timestampParser.parse(bytes, tokenizer.getStart(5), tokenizer.getLength(5));
+		} catch (ParseException e) {
+			theLogger.error( e.getMessage(), e );
+			return false;
+		}
+
+		key.set(taxi);
+		value.set(start_status, start_epoch, GpsCoordinates.toDegrees(start_lat), GpsCoordinates.toDegrees(start_long),
+				end_status, end_epoch, GpsCoordinates.toDegrees(end_lat), GpsCoordinates.toDegrees(end_long));
+		return true;
+	}
+
+	/**
+	 * @return shared status Text for field, or null if not "E" or "M"
+	 */
+	private Text getStatus(int field)
+	{
+		if (tokenizer.isChar(field, 'E'))
+			return STATUS_EMPTY;
+		else if (tokenizer.isChar(field, 'M'))
+			return STATUS_MOVING;
+		return null;
+	}
+
+	/**
+	 * @return taxi id from field 0, or -1 if not a non-negative int in canonical form
+	 * (no sign or leading zeros), so that the id written out matches the input
+	 */
+	private int parseTaxiID()
+	{
+		byte[] bytes = tokenizer.getBytes();
+		int start = tokenizer.getStart(0);
+		int len = tokenizer.getLength(0);
+		if (len == 0 || (len > 1 && bytes[start] == '0'))
+			return -1;
+
+		int id = 0;
+		for (int i = start; i < start + len; i++)
+		{
+			int d = bytes[i] - '0';
+			if (d < 0 || d > 9)
+				return -1;
+			if (id > (Integer.MAX_VALUE - d) / 10)
+				return -1;
+			id = id * 10 + d;
+		}
+		return id;
+	}
+
+
+	private void startDecoder() throws InterruptedException
+	{
+		fullBatches = new ArrayBlockingQueue<Batch>(NUM_BATCHES);
+		freeBatches = new ArrayBlockingQueue<Batch>(NUM_BATCHES);
+		for (int i = 0; i < NUM_BATCHES; i++)
+			freeBatches.put(new Batch());
+
+		decoder = new Thread("GpsSegmentRecordReader-decoder") {
+			@Override
+			public void run() {
+				boolean more = true;
+				while (more)
+				{
+					Batch batch;
+					try {
+						batch = freeBatches.take();
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					batch.size = 0;
+					batch.pos = 0;
+					try {
+						while (batch.size < BATCH_SIZE
+								&& (more = decodeNext(batch.keys[batch.size], batch.values[batch.size])))
+							batch.size++;
+					} catch (Throwable t) {
+						decoderFailure = t;
+						more = false;
+					}
+					batch.last = !more;
+
+					try {
+						fullBatches.put(batch);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		decoder.setDaemon(true);
+		decoder.start();
+	}
+
+	private void checkDecoder() throws IOException
+	{
+		if (decoderFailure != null)
+			throw new IOException("GPS record decoding failed", decoderFailure);
+	}
+}
@@ -0,0 +1,128 @@
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * formats epoch seconds as the human readable "yyyy-MM-dd'T'HH:mm:ssZ" timestamps of
+ * CabTrips and CabTripRevenue output, e.g. 2008-06-09T13:38:37-0700, straight into a
+ * TextOutputBuffer; the counterpart of GpsTimestampParser
+ *
+ * the formatted text of the start of each local hour is kept in a small cache, along
+ * with the span of epoch seconds it covers, so that a timestamp in a recently seen hour
+ * only needs its minutes and seconds digits filled in; GPS samples a minute or so apart
+ * share an hour but seldom a minute. Hours in which the zone offset changes, or is not
+ * in whole seconds, are formatted by SimpleDateFormat every time, so that results are
+ * identical
+ *
+ * instances are not thread-safe
+ */
+public class GpsTimestampFormatter {
+
+	private final static String ISO_PATTERN = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+	private final static int ISO_LENGTH = 24;
+	// the minutes and seconds digits come before the zone offset, e.g. "-0700"
+	private final static int MINUTES_FROM_END = 10;
+	private final static int SECONDS_FROM_END = 7;
+
+	private final static int CACHE_SIZE = 64;	// must be a power of 2
+
+	private final TimeZone timeZone;
+	private final DateFormat isoFormat;
+
+	// per-hour cache, indexed by UTC hour: epoch seconds of the start of the local hour,
+	// and its formatted text
+	private final long[] cacheStart = new long[CACHE_SIZE];
+	private final byte[][] cacheText = new byte[CACHE_SIZE][ISO_LENGTH];
+	private final int[] cacheLength = new int[CACHE_SIZE];
+
+
+	/**
+	 * @param timeZone - zone shown, e.g. from TimezoneMapper
+	 */
+	public GpsTimestampFormatter(TimeZone timeZone)
+	{
+		this.timeZone = timeZone;
+		this.isoFormat = new SimpleDateFormat(ISO_PATTERN);
+		this.isoFormat.setTimeZone(timeZone);
+		for (int i = 0; i < CACHE_SIZE; i++)
+			cacheStart[i] = Long.MIN_VALUE;
+	}
+
+	public TimeZone getTimeZone() {
+		return timeZone;
+	}
+
+
+	/**
+	 * @param epoch - seconds since 1970-01-01 00:00:00 UTC
+	 * @param out - receives the formatted timestamp
+	 */
+	public void format(long epoch, TextOutputBuffer out)
+	{
+		long hour = epoch / 3600L;
+		if (epoch % 3600L < 0)
+			hour--;
+		int slot = (int) hour & (CACHE_SIZE - 1);
+
+		long elapsed = epoch - cacheStart[slot];
+		if ((elapsed < 0 || elapsed >= 3600L) && !fill(slot, epoch))
+		{
+			out.append(isoFormat.format(new Date(epoch * 1000L)));
+			return;
+		}
+		elapsed = epoch - cacheStart[slot];
+
+		byte[] text = cacheText[slot];
+		int length = cacheLength[slot];
+		int minutes = (int) (elapsed / 60L);
+		int seconds = (int) (elapsed % 60L);
+		int pos = length - MINUTES_FROM_END;
+		out.append(text, 0, pos);
+		out.append((byte) ('0' + minutes / 10));
+		out.append((byte) ('0' + minutes % 10));
+		out.append((byte) ':');
+		out.append((byte) ('0' + seconds / 10));
+		out.append((byte) ('0' + seconds % 10));
+		pos = length - SECONDS_FROM_END + 2;
+		out.append(text, pos, length - pos);
+	}
+
+	/**
+	 * cache the local hour holding epoch
+	 *
+	 * @return false if the hour can't be cached, because the zone offset changes during
+	 * it, or is not in whole seconds
+	 */
+	private boolean fill(int slot, long epoch)
+	{
+		int offset = timeZone.getOffset(epoch * 1000L);
+		if (offset % 1000 != 0)
+			return false;
+
+		long local = epoch + offset / 1000;
+		long start = local - local % 3600L;
+		if (local % 3600L < 0)
+			start -= 3600L;
+		start -= offset / 1000;
+		if (timeZone.getOffset(start * 1000L) != offset || timeZone.getOffset(start * 1000L + 3599999L) != offset)
+			return false;
+
+		String s = isoFormat.format(new Date(start * 1000L));
+		cacheStart[slot] = Long.MIN_VALUE;
+		byte[] text = cacheText[slot];
+		if (text.length < s.length())
+			text = cacheText[slot] = new byte[s.length()];
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c >= 0x80)
+				return false;
+			text[i] = (byte) c;
+		}
+		cacheLength[slot] = s.length();
+		cacheStart[slot] = start;
+		return true;
+	}
+}
@@ -0,0 +1,322 @@
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * parses the fixed-layout timestamps used by the GPS feed and by CabTrips output
+ * into epoch seconds, reading the digits straight from the input bytes
+ *
+ * "yyyy-MM-dd HH:mm:ss"		- local time in the zone supplied to the constructor
+ * "yyyy-MM-dd'T'HH:mm:ssZ"	- human readable CabTrips output, e.g. 2008-06-09T13:38:37-0700
+ *
+ * the epoch time of local midnight is looked up in a small cache keyed by date, so
+ * that a local timestamp costs a handful of multiplications; days on which the zone
+ * has an offset transition, and any input not matching the layout exactly, are handed
+ * to the same lenient calendar parsing as SimpleDateFormat, so that results are identical.
+ * Custom zones whose transitions cannot be looked up always take the calendar path
+ *
+ * instances are not thread-safe
+ */
+public class GpsTimestampParser {
+
+	private final static String LOCAL_PATTERN = "yyyy-MM-dd HH:mm:ss";
+	private final static String ISO_PATTERN = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+	private final static int LOCAL_LENGTH = 19;
+	private final static int ISO_LENGTH = 24;
+
+	private final static int CACHE_SIZE = 64;	// must be a power of 2
+
+	// transitions are looked for this far either side of a UTC day, to cover all local days
+	private final static long OFFSET_WINDOW_MS = 18L * 3600L * 1000L;
+
+	private final TimeZone timeZone;
+	// transitions of timeZone, or null if they cannot be looked up
+	private final ZoneRules rules;
+	private final Calendar calendar;
+	private DateFormat localFormat = null;
+	private DateFormat isoFormat = null;
+
+	// per-day cache: epoch day number, epoch time of local midnight,
+	// and whether the zone offset is constant for the whole day
+	private final long[] cacheDay = new long[CACHE_SIZE];
+	private final long[] cacheMidnight = new long[CACHE_SIZE];
+	private final boolean[] cacheUniform = new boolean[CACHE_SIZE];
+
+	private final byte[] scratch = new byte[ISO_LENGTH];
+
+
+	/**
+	 * @param timeZone - zone of local timestamps, e.g. from TimezoneMapper
+	 */
+	public GpsTimestampParser(TimeZone timeZone)
+	{
+		this.timeZone = timeZone;
+		this.rules = getRules(timeZone);
+		this.calendar = new GregorianCalendar(timeZone);
+		for (int i = 0; i < CACHE_SIZE; i++)
+			cacheDay[i] = Long.MIN_VALUE;
+	}
+
+	public TimeZone getTimeZone() {
+		return timeZone;
+	}
+
+
+	/**
+	 * @param b - buffer holding a local "yyyy-MM-dd HH:mm:ss" timestamp
+	 * @param offset
+	 * @param length
+	 * @return epoch seconds
+	 * @throws ParseException - if the timestamp is not valid
+	 */
+	public long parse(byte[] b, int offset, int length) throws ParseException
+	{
+		if (length != LOCAL_LENGTH || !isDateLayout(b, offset, (byte) ' '))
+			return slowParse(b, offset, length);
+
+		int year = digits(b, offset, 4);
+		int month = digits(b, offset + 5, 2);
+		int day = digits(b, offset + 8, 2);
+		int secs = secondOfDay(b, offset + 11);
+		if (!isValidDate(year, month, day) || secs < 0)
+			return slowParse(b, offset, length);
+
+		long epochDay = daysFromCivil(year, month, day);
+		int slot = (int) (epochDay & (CACHE_SIZE - 1));
+		if (cacheDay[slot] != epochDay)
+			fillCache(slot, epochDay);
+
+		if (cacheUniform[slot])
+			return cacheMidnight[slot] + secs;
+
+		// zone offset changes today; let the calendar decide
+		calendar.clear();
+		calendar.set(year, month - 1, day, secs / 3600, (secs / 60) % 60, secs % 60);
+		return calendar.getTimeInMillis() / 1000;
+	}
+
+	/**
+	 * @param s - local "yyyy-MM-dd HH:mm:ss" timestamp
+	 * @return epoch seconds
+	 * @throws ParseException - if the timestamp is not valid
+	 */
+	public long parse(String s) throws ParseException
+	{
+		if (!toScratch(s))
+			return getLocalFormat().parse(s).getTime()/1000;
+		return parse(scratch, 0, s.length());
+	}
+
+
+	/**
+	 * @param b - buffer holding a "yyyy-MM-dd'T'HH:mm:ssZ" timestamp
+	 * @param offset
+	 * @param length
+	 * @return epoch seconds
+	 * @throws ParseException - if the timestamp is not valid
+	 */
+	public long parseIso(byte[] b, int offset, int length) throws ParseException
+	{
+		if (length != ISO_LENGTH || !isDateLayout(b, offset, (byte) 'T')
+		||  (b[offset + 19] != '+' && b[offset + 19] != '-'))
+			return slowParseIso(b, offset, length);
+
+		int year = digits(b, offset, 4);
+		int month = digits(b, offset + 5, 2);
+		int day = digits(b, offset + 8, 2);
+		int secs = secondOfDay(b, offset + 11);
+		int zoneHours = digits(b, offset + 20, 2);
+		int zoneMinutes = digits(b, offset + 22, 2);
+		if (!isValidDate(year, month, day) || secs < 0 || zoneHours < 0 || zoneHours > 23
+		||  zoneMinutes < 0 || zoneMinutes > 59)
+			return slowParseIso(b, offset, length);
+
+		int zoneOffset = zoneHours * 3600 + zoneMinutes * 60;
+		if (b[offset + 19] == '-')
+			zoneOffset = -zoneOffset;
+
+		return daysFromCivil(year, month, day) * 86400L + secs - zoneOffset;
+	}
+
+	/**
+	 * @param s - "yyyy-MM-dd'T'HH:mm:ssZ" timestamp
+	 * @return epoch seconds
+	 * @throws ParseException - if the timestamp is not valid
+	 */
+	public long parseIso(String s) throws ParseException
+	{
+		if (!toScratch(s))
+			return getIsoFormat().parse(s).getTime()/1000;
+		return parseIso(scratch, 0, s.length());
+	}
+
+
+	/**
+	 * computes epoch time of local midnight for a day, and checks whether the zone
+	 * offset is constant for the whole of the day, i.e. whether the zone's next
+	 * transition is after it
+	 *
+	 * the offsets either side are compared too: TimeZone keeps one offset for all times
+	 * before 1900, so it can change offset at the start of 1900 where the rules do not
+	 */
+	private void fillCache(int slot, long epochDay)
+	{
+		long windowStartMs = epochDay * 86400000L - OFFSET_WINDOW_MS;
+		long windowEndMs = epochDay * 86400000L + 86400000L + OFFSET_WINDOW_MS;
+		int offset = timeZone.getOffset(windowStartMs);
+
+		boolean uniform = false;
+		if (rules != null && offset == timeZone.getOffset(windowEndMs))
+		{
+			ZoneOffsetTransition next = rules.nextTransition(Instant.ofEpochMilli(windowStartMs));
+			uniform = (next == null || next.toEpochSecond() * 1000L > windowEndMs);
+		}
+
+		cacheDay[slot] = epochDay;
+		cacheUniform[slot] = uniform;
+		cacheMidnight[slot] = epochDay * 86400L - offset / 1000;
+	}
+
+	/**
+	 * @return transitions of a zone known by its id, or null for a custom zone, e.g.
+	 * a SimpleTimeZone, whose rules may not be those of its id
+	 */
+	private static ZoneRules getRules(TimeZone timeZone)
+	{
+		try {
+			if (TimeZone.getTimeZone(timeZone.getID()).hasSameRules(timeZone))
+				return timeZone.toZoneId().getRules();
+		} catch (DateTimeException e) {
+			// id not known to java.time
+		}
+		return null;
+	}
+
+
+	/**
+	 * checks separators of "yyyy-MM-dd?HH:mm:ss"
+	 */
+	private static boolean isDateLayout(byte[] b, int offset, byte dateTimeSeparator)
+	{
+		return b[offset + 4] == '-' && b[offset + 7] == '-' && b[offset + 10] == dateTimeSeparator
+			&& b[offset + 13] == ':' && b[offset + 16] == ':';
+	}
+
+	/**
+	 * @return seconds since midnight of "HH:mm:ss", or -1 if invalid
+	 */
+	private static int secondOfDay(byte[] b, int offset)
+	{
+		int hour = digits(b, offset, 2);
+		int minute = digits(b, offset + 3, 2);
+		int second = digits(b, offset + 6, 2);
+		if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59)
+			return -1;
+		return hour * 3600 + minute * 60 + second;
+	}
+
+	/**
+	 * @return value of count decimal digits, or -1 if any are not digits
+	 */
+	private static int digits(byte[] b, int offset, int count)
+	{
+		int value = 0;
+		for (int i = offset; i < offset + count; i++)
+		{
+			int d = b[i] - '0';
+			if (d < 0 || d > 9)
+				return -1;
+			value = value * 10 + d;
+		}
+		return value;
+	}
+
+	private static boolean isValidDate(int year, int month, int day)
+	{
+		// earlier dates are left to the calendar, which knows about the Julian cutover
+		if (year < 1900 || month < 1 || month > 12 || day < 1)
+			return false;
+
+		int monthLength;
+		if (month == 2)
+			monthLength = ((year % 4 == 0 && year % 100 != 0) || year % 400 == 0) ? 29 : 28;
+		else
+			monthLength = 30 + ((month + (month >> 3)) & 1);
+		return day <= monthLength;
+	}
+
+	/**
+	 * @return days since 1970-01-01 of a proleptic Gregorian date
+	 */
+	static long daysFromCivil(int year, int month, int day)
+	{
+		if (month <= 2)
+			year--;
+		int era = (year >= 0 ? year : year - 399) / 400;
+		int yearOfEra = year - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468L;
+	}
+
+	/**
+	 * copies an ASCII string of a plausible length into the scratch buffer
+	 *
+	 * @return false if the string cannot be handled by the fast path
+	 */
+	private boolean toScratch(String s)
+	{
+		int len = s.length();
+		if (len != LOCAL_LENGTH && len != ISO_LENGTH)
+			return false;
+
+		for (int i = 0; i < len; i++)
+		{
+			char c = s.charAt(i);
+			if (c > 127)
+				return false;
+			scratch[i] = (byte) c;
+		}
+		return true;
+	}
+
+
+	private long slowParse(byte[] b, int offset, int length) throws ParseException
+	{
+		return getLocalFormat().parse(new String(b, offset, length, StandardCharsets.UTF_8)).getTime()/1000;
+	}
+
+	private long slowParseIso(byte[] b, int offset, int length) throws ParseException
+	{
+		return getIsoFormat().parse(new String(b, offset, length, StandardCharsets.UTF_8)).getTime()/1000;
+	}
+
+	private DateFormat getLocalFormat()
+	{
+		if (localFormat == null)
+		{
+			localFormat = new SimpleDateFormat(LOCAL_PATTERN);
+			localFormat.setTimeZone(timeZone);
+		}
+		return localFormat;
+	}
+
+	private DateFormat getIsoFormat()
+	{
+		if (isoFormat == null)
+		{
+			isoFormat = new SimpleDateFormat(ISO_PATTERN);
+			isoFormat.setTimeZone(timeZone);
+		}
+		return isoFormat;
+	}
+}
@@ -0,0 +1,84 @@
+
+/**
+ * running count, mean and sum of squared deviations (M2) of a series of values,
+ * updated one value at a time (Welford) without keeping the values
+ *
+ * accumulators over separate parts of a series can be merged, giving exactly the
+ * statistics of the whole series
+ */
+public class RunningMoments {
+
+	private long count = 0;
+	private double mean = 0d;
+	private double m2 = 0d;
+
+	public RunningMoments() {
+	}
+
+	/**
+	 * @param count
+	 * @param mean
+	 * @param variance - sample variance, as from getVariance()
+	 */
+	public RunningMoments(long count, double mean, double variance)
+	{
+		this.count = count;
+		this.mean = count > 0 ? mean : 0d;
+		this.m2 = count > 1 ? variance * (count - 1) : 0d;
+	}
+
+	/**
+	 * @param x - next value
+	 */
+	public void add(double x)
+	{
+		count++;
+		double delta = x - mean;
+		mean += delta / count;
+		m2 += delta * (x - mean);
+	}
+
+	/**
+	 * add all the values accumulated by other
+	 *
+	 * @param other
+	 */
+	public void merge(RunningMoments other)
+	{
+		if (other.count == 0)
+			return;
+		if (count == 0)
+		{
+			count = other.count;
+			mean = other.mean;
+			m2 = other.m2;
+			return;
+		}
+
+		long n = count + other.count;
+		double delta = other.mean - mean;
+		mean += delta * other.count / n;
+		m2 += other.m2 + delta * delta * ((double) count * other.count / n);
+		count = n;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return mean, or NaN if there are no values
+	 */
+	public double getMean() {
+		return count > 0 ? mean : Double.NaN;
+	}
+
+	/**
+	 * @return bias-corrected sample variance, 0 for a single value, NaN if there are no values
+	 */
+	public double getVariance() {
+		if (count == 0)
+			return Double.NaN;
+		return count > 1 ? m2 / (count - 1) : 0d;
+	}
+}
@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.log4j.Logger;
+
+/**
+ * reads every record of an evenly spaced fraction of a job's input splits, in the style
+ * of InputSampler, so that a driver can gather statistics before submitting the job
+ *
+ * splits are read in parallel, each by its own Visitor; the caller merges the results
+ */
+public class SplitSampler {
+
+	private static Logger theLogger = Logger.getLogger(SplitSampler.class);
+
+	/**
+	 * receives the records of one split
+	 */
+	public interface Visitor<K, V> {
+		void visit(K key, V value) throws IOException;
+	}
+
+	/**
+	 * creates a Visitor for each split read
+	 */
+	public interface VisitorFactory<K, V, T extends Visitor<K, V>> {
+		T create();
+	}
+
+
+	/**
+	 * @param job - job whose input is sampled
+	 * @param inputFormat - the job's input format
+	 * @param fraction - fraction of splits to read, (0, 1]; at least one split is read
+	 * @param numThreads - number of splits read at once
+	 * @param factory
+	 * @return a Visitor for each split read
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static <K, V, T extends Visitor<K, V>> List<T> sample(Job job, InputFormat<K, V> inputFormat,
+			float fraction, int numThreads, VisitorFactory<K, V, T> factory)
+			throws IOException, InterruptedException
+	{
+		List<InputSplit> splits = inputFormat.getSplits(job);
+		int numSamples = Math.min(splits.size(), Math.max(1, (int) Math.ceil(fraction * splits.size())));
+		theLogger.info("SplitSampler: reading "+numSamples+" of "+splits.size()+" splits");
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, numSamples)));
+		List<Future<T>> results = new ArrayList<Future<T>>();
+		try {
+			// take splits spread evenly across the input
+			float step = splits.size() / (float) numSamples;
+			for (int i = 0; i < numSamples; i++)
+			{
+				SampleTask<K, V, T> task = new SampleTask<K, V, T>(job.getConfiguration(), inputFormat,
+						splits.get((int) (i * step)), factory.create());
+				results.add(pool.submit(task));
+			}
+
+			List<T> visitors = new ArrayList<T>();
+			for (Future<T> result : results)
+				visitors.add(result.get());
+			return visitors;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Sampling failed", cause);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * reads a single split
+	 */
+	private static class SampleTask<K, V, T extends Visitor<K, V>> implements Callable<T> {
+		private Configuration conf;
+		private InputFormat<K, V> inputFormat;
+		private InputSplit split;
+		private T visitor;
+
+		SampleTask(Configuration conf, InputFormat<K, V> inputFormat, InputSplit split, T visitor) {
+			// readers may set properties, so each gets its own copy
+			this.conf = new Configuration(conf);
+			this.inputFormat = inputFormat;
+			this.split = split;
+			this.visitor = visitor;
+		}
+
+		@Override
+		public T call() throws IOException, InterruptedException {
+			TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+			RecordReader<K, V> reader = inputFormat.createRecordReader(split, context);
+			try {
+				reader.initialize(split, context);
+				while (reader.nextKeyValue())
+					visitor.visit(reader.getCurrentKey(), reader.getCurrentValue());
+			} finally {
+				reader.close();
+			}
+			return visitor;
+		}
+	}
+}
@@ -0,0 +1,214 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * growable byte buffer for building lines of text output; numbers are written as
+ * digits straight into the buffer rather than through String conversions
+ *
+ * doubles are shown either exactly as Double.toString would show them (the shortest
+ * decimal which reads back as the same double), or as String.format shows them to a
+ * fixed number of decimal places, e.g. 2 for costs
+ */
+public class TextOutputBuffer {
+
+	private final static byte[] DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9' };
+
+	private final static double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+	};
+	// largest magnitude below which every long is exactly a double
+	private final static double MAX_EXACT = 9007199254740992d;
+
+	private byte[] data;
+	private int length = 0;
+
+	// scratch space for digits, written backwards
+	private byte[] digits = new byte[20];
+
+
+	public TextOutputBuffer() {
+		this(1024);
+	}
+
+	public TextOutputBuffer(int capacity) {
+		data = new byte[capacity];
+	}
+
+	public void reset()
+	{
+		length = 0;
+	}
+
+	public byte[] getData()
+	{
+		return data;
+	}
+
+	public int getLength()
+	{
+		return length;
+	}
+
+	private void ensureCapacity(int len)
+	{
+		if (length + len > data.length)
+			data = Arrays.copyOf(data, Math.max(data.length * 2, length + len));
+	}
+
+	public TextOutputBuffer append(byte b)
+	{
+		ensureCapacity(1);
+		data[length++] = b;
+		return this;
+	}
+
+	public TextOutputBuffer append(byte[] b, int off, int len)
+	{
+		ensureCapacity(len);
+		System.arraycopy(b, off, data, length, len);
+		length += len;
+		return this;
+	}
+
+	public TextOutputBuffer append(Text t)
+	{
+		return append(t.getBytes(), 0, t.getLength());
+	}
+
+	/**
+	 * appends s as UTF-8; plain ASCII, such as a formatted date, is copied a char at a time
+	 */
+	public TextOutputBuffer append(String s)
+	{
+		int n = s.length();
+		ensureCapacity(n);
+		for (int i = 0; i < n; i++)
+		{
+			char c = s.charAt(i);
+			if (c >= 0x80)
+			{
+				// roll back and encode the whole string
+				length -= i;
+				Text t = new Text(s);
+				return append(t);
+			}
+			data[length++] = (byte) c;
+		}
+		return this;
+	}
+
+	public TextOutputBuffer append(long value)
+	{
+		if (value == Long.MIN_VALUE)
+			return append(Long.toString(value));
+
+		if (value < 0)
+		{
+			append((byte) '-');
+			value = -value;
+		}
+		int pos = digits.length;
+		do {
+			digits[--pos] = DIGITS[(int) (value % 10)];
+			value /= 10;
+		} while (value > 0);
+		return append(digits, pos, digits.length - pos);
+	}
+
+	/**
+	 * appends value as Double.toString would; values with at most six decimal places,
+	 * such as GPS coordinates, are written from their micro-units without a String
+	 */
+	public TextOutputBuffer append(double value)
+	{
+		double abs = Math.abs(value);
+		if (abs >= 1e-3 && abs < 1e7)
+		{
+			// Double.toString gives the shortest decimal which reads back as value; with
+			// at most 13 significant digits that is the one the micro-units give
+			long micro = Math.round(value * GpsCoordinates.SCALE);
+			if (micro / (double) GpsCoordinates.SCALE == value)
+				return appendFixed(micro, GpsCoordinates.SCALE_DIGITS, 1);
+		}
+		return append(Double.toString(value));
+	}
+
+	/**
+	 * appends value to the given number of decimal places as String.format("%.nf")
+	 * would in the root locale, e.g. 8.180903810758316 to 2 places is "8.18"; that
+	 * rounds the digits Double.toString gives half up, so 1.005 is "1.01", and keeps
+	 * the sign of negatives which round to zero, so -0.001 is "-0.00"
+	 *
+	 * @param value
+	 * @param decimals - decimal places; negative for the shortest form, as append(double)
+	 */
+	public TextOutputBuffer append(double value, int decimals)
+	{
+		if (decimals < 0)
+			return append(value);
+
+		// NaN, infinities, values too large to scale, and those whose scaled value is
+		// too close to a half for rounding the double to be sure of rounding its
+		// decimal digits the same way are left to String.format
+		if (decimals < POWERS_OF_TEN.length)
+		{
+			double scaled = Math.abs(value) * POWERS_OF_TEN[decimals];
+			if (scaled < MAX_EXACT && Math.abs(scaled - Math.floor(scaled) - 0.5) > 4 * Math.ulp(scaled))
+			{
+				if (Double.doubleToRawLongBits(value) < 0)
+					append((byte) '-');
+				return appendFixed(Math.round(scaled), decimals, decimals);
+			}
+		}
+		return append(String.format(Locale.ROOT, "%."+decimals+"f", value));
+	}
+
+	/**
+	 * appends a fixed-point number with trailing zeros of its fraction removed
+	 *
+	 * @param units - value in units of 10^-scale
+	 * @param scale - number of decimal places in units
+	 * @param minDecimals - fewest decimal places to show
+	 */
+	private TextOutputBuffer appendFixed(long units, int scale, int minDecimals)
+	{
+		if (units < 0)
+		{
+			append((byte) '-');
+			units = -units;
+		}
+
+		// fraction digits, least significant first, dropping trailing zeros
+		int pos = digits.length;
+		int decimals = scale;
+		while (decimals > minDecimals && units % 10 == 0)
+		{
+			units /= 10;
+			decimals--;
+		}
+		for (int i = 0; i < decimals; i++)
+		{
+			digits[--pos] = DIGITS[(int) (units % 10)];
+			units /= 10;
+		}
+		if (decimals > 0)
+			digits[--pos] = '.';
+		do {
+			digits[--pos] = DIGITS[(int) (units % 10)];
+			units /= 10;
+		} while (units > 0);
+		return append(digits, pos, digits.length - pos);
+	}
+
+	/**
+	 * write the buffer's contents to out
+	 */
+	public void writeTo(DataOutput out) throws IOException
+	{
+		out.write(data, 0, length);
+	}
+}
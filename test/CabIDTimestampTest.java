@@ -0,0 +1,140 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+/**
+ * CabIDTimestamp keys must read back as written, and the comparators used on their
+ * serialized bytes must order them as compareTo does
+ */
+public class CabIDTimestampTest {
+
+	// also the edge values for other keys holding epoch seconds
+	final static long[] TIMES = { Long.MIN_VALUE, -86400L, -1L, 0L, 1L, 255L, 256L,
+		1211018404L, 4294967296L, Long.MAX_VALUE };
+
+	private final static int[] IDS = { Integer.MIN_VALUE, -1, 0, 1, 255, 256, 65536, 999999999,
+		1000000000, Integer.MAX_VALUE };
+
+	private final static RawComparator<?> REGISTERED = WritableComparator.get(CabIDTimestamp.class);
+	private final static CabIDTimestampSortComp SORT = new CabIDTimestampSortComp();
+	private final static CabIDTimestampComp GROUP = new CabIDTimestampComp();
+	private final static CabIDCombinerGroupComp COMBINER_GROUP = new CabIDCombinerGroupComp();
+
+
+	@Test
+	public void roundTrip() throws IOException
+	{
+		CabIDTimestamp copy = new CabIDTimestamp();
+		for (int id : IDS)
+		{
+			for (long ts : TIMES)
+			{
+				CabIDTimestamp key = new CabIDTimestamp(id, ts);
+				assertEquals(CabIDTimestamp.SIZE, assertRoundTrip(key, copy));
+				assertEquals(key.hashCode(), copy.hashCode());
+			}
+		}
+	}
+
+	@Test
+	public void edgeValuesCompareAsObjects() throws IOException
+	{
+		for (int id1 : IDS)
+		{
+			for (int id2 : IDS)
+			{
+				for (long ts1 : TIMES)
+				{
+					for (long ts2 : TIMES)
+						checkPair(new CabIDTimestamp(id1, ts1), new CabIDTimestamp(id2, ts2));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void randomPairsCompareAsObjects() throws IOException
+	{
+		Random random = new Random(20080517L);
+		for (int n = 0; n < 100000; n++)
+		{
+			CabIDTimestamp a = randomKey(random);
+			CabIDTimestamp b = randomKey(random);
+			// mostly the same taxi, as in a reducer's input
+			if (random.nextBoolean())
+				b.setvehicleID(a.getVehicleID());
+			checkPair(a, b);
+		}
+	}
+
+
+	private static CabIDTimestamp randomKey(Random random)
+	{
+		int id = random.nextBoolean() ? random.nextInt(1000) : random.nextInt();
+		long ts = random.nextBoolean() ? 1211000000L + random.nextInt(1000000) : random.nextLong();
+		return new CabIDTimestamp(id, ts);
+	}
+
+	/**
+	 * checks that each comparator agrees in sign with the object comparison it stands for
+	 */
+	private static void checkPair(CabIDTimestamp a, CabIDTimestamp b) throws IOException
+	{
+		String msg = a+" vs "+b;
+		int expected = Integer.signum(a.compareTo(b));
+		int sameTaxi = Integer.signum(Integer.compare(a.getVehicleID(), b.getVehicleID()));
+
+		assertEquals(msg, expected, rawCompare(REGISTERED, a, b));
+		assertEquals(msg, expected, rawCompare(SORT, a, b));
+		assertEquals(msg, expected, Integer.signum(SORT.compare(a, b)));
+
+		assertEquals(msg, sameTaxi, rawCompare(GROUP, a, b));
+		assertEquals(msg, sameTaxi, Integer.signum(GROUP.compare(a, b)));
+		assertEquals(msg, sameTaxi, rawCompare(COMBINER_GROUP, a, b));
+		assertEquals(msg, sameTaxi, Integer.signum(COMBINER_GROUP.compare(a, b)));
+	}
+
+	/**
+	 * writes key, reads it back into copy, and checks that it equals key and that all
+	 * the bytes were read
+	 *
+	 * @return serialized length
+	 */
+	static int assertRoundTrip(Writable key, Writable copy) throws IOException
+	{
+		DataOutputBuffer out = new DataOutputBuffer();
+		key.write(out);
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(out.getData(), out.getLength());
+		copy.readFields(in);
+		assertEquals("bytes left", 0, in.available());
+		assertEquals(key, copy);
+		return out.getLength();
+	}
+
+	/**
+	 * serializes a and b at different offsets of one buffer and compares their bytes
+	 *
+	 * @return the sign of the comparison
+	 */
+	static int rawCompare(RawComparator<?> comparator, Writable a, Writable b) throws IOException
+	{
+		DataOutputBuffer out = new DataOutputBuffer();
+		out.write(new byte[3]);
+		a.write(out);
+		int l1 = out.getLength() - 3;
+		out.write(new byte[5]);
+		int s2 = out.getLength();
+		b.write(out);
+		int l2 = out.getLength() - s2;
+		return Integer.signum(comparator.compare(out.getData(), 3, l1, out.getData(), s2, l2));
+	}
+}
@@ -0,0 +1,122 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+/**
+ * CabTripBuffer's columnar wire format, as used for CabTrips' binary output, must
+ * give back every segment as written
+ */
+public class CabTripBufferTest {
+
+	private final DataOutputBuffer out = new DataOutputBuffer();
+	private final DataInputBuffer in = new DataInputBuffer();
+	// read into one instance throughout, as CabTripRecordReader does
+	private final CabTripBuffer copy = new CabTripBuffer();
+
+
+	@Test
+	public void contiguousTrip() throws IOException
+	{
+		CabTripBuffer trip = new CabTripBuffer();
+		trip.add(1211018404L, 37.75134, -122.39488, 1211018465L, 37.75136, -122.39527);
+		trip.add(1211018465L, 37.75136, -122.39527, 1211018525L, 37.75101, -122.39601);
+		trip.add(1211018525L, 37.75101, -122.39601, 1211018585L, 37.74999, -122.39725);
+		roundTrip(trip);
+		// the start columns after the first are zeros
+		assertTrue(out.getLength() < 3 * 4 * 8);
+	}
+
+	@Test
+	public void segmentCoordinates() throws IOException
+	{
+		// CabTripSegment's cases as one trip, alone and with each off-grid value, which
+		// sends every coordinate of the trip as a double
+		CabTripBuffer trip = new CabTripBuffer();
+		for (int n = -1; n < CabTripSegmentTest.OFF_GRID.length; n++)
+		{
+			trip.clear();
+			for (double[] c : CabTripSegmentTest.COORDINATES)
+				trip.add(0L, c[0], c[1], 60L, c[2], c[3]);
+			if (n >= 0)
+			{
+				double v = CabTripSegmentTest.OFF_GRID[n];
+				trip.add(100L, 37.7, v, 160L, v, -122.41);
+			}
+			roundTrip(trip);
+		}
+	}
+
+	@Test
+	public void sizes() throws IOException
+	{
+		// empty, then longer than the initial capacity, then short again
+		roundTrip(new CabTripBuffer());
+		for (int n : new int[] { 1, 63, 64, 65, 1000, 2 })
+		{
+			CabTripBuffer trip = new CabTripBuffer();
+			for (int i = 0; i < n; i++)
+				trip.add(1000L + i * 60L, 37.7 + i * 0.00001, -122.4, 1060L + i * 60L, 37.7 + (i + 1) * 0.00001, -122.4);
+			roundTrip(trip);
+		}
+	}
+
+	@Test
+	public void random() throws IOException
+	{
+		Random random = new Random(20080517L);
+		CabTripBuffer trip = new CabTripBuffer();
+		for (int n = 0; n < 5000; n++)
+		{
+			boolean grid = random.nextInt(4) != 0;
+			boolean contiguous = random.nextBoolean();
+			trip.clear();
+			long ts = random.nextInt(4) == 0 ? random.nextLong() : 1211000000L + random.nextInt(1000000);
+			double lat = CabTripSegmentTest.randomDegrees(random, 90, grid);
+			double lng = CabTripSegmentTest.randomDegrees(random, 180, grid);
+			int size = random.nextInt(200);
+			for (int i = 0; i < size; i++)
+			{
+				long start_ts = contiguous ? ts : ts + random.nextInt(600) - 60;
+				double start_lat = contiguous ? lat : CabTripSegmentTest.randomDegrees(random, 90, grid);
+				double start_long = contiguous ? lng : CabTripSegmentTest.randomDegrees(random, 180, grid);
+				ts = start_ts + random.nextInt(300);
+				lat = CabTripSegmentTest.randomDegrees(random, 90, grid);
+				lng = CabTripSegmentTest.randomDegrees(random, 180, grid);
+				trip.add(start_ts, start_lat, start_long, ts, lat, lng);
+			}
+			roundTrip(trip);
+		}
+	}
+
+
+	/**
+	 * writes trip, reads it back into copy, and checks every segment and that all the
+	 * bytes were read
+	 */
+	private void roundTrip(CabTripBuffer trip) throws IOException
+	{
+		out.reset();
+		trip.write(out);
+		in.reset(out.getData(), out.getLength());
+		copy.readFields(in);
+		assertEquals("bytes left", 0, in.available());
+
+		assertEquals(trip.size(), copy.size());
+		for (int i = 0; i < trip.size(); i++)
+		{
+			String msg = "segment "+i+" of "+trip.size();
+			assertEquals(msg, trip.getStart_timestamp(i), copy.getStart_timestamp(i));
+			CabTripSegmentTest.assertSameDouble(msg, trip.getStart_lat(i), copy.getStart_lat(i));
+			CabTripSegmentTest.assertSameDouble(msg, trip.getStart_long(i), copy.getStart_long(i));
+			assertEquals(msg, trip.getEnd_timestamp(i), copy.getEnd_timestamp(i));
+			CabTripSegmentTest.assertSameDouble(msg, trip.getEnd_lat(i), copy.getEnd_lat(i));
+			CabTripSegmentTest.assertSameDouble(msg, trip.getEnd_long(i), copy.getEnd_long(i));
+		}
+	}
+}
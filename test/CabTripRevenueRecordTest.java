@@ -0,0 +1,76 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+/**
+ * CabTripRevenueRecord keys must read back as written, and CabTripRevenueRecordComp
+ * must order their serialized bytes as compareTo orders the records; the zone does not
+ * take part in either
+ */
+public class CabTripRevenueRecordTest {
+
+	private final static int[] ZONES = { 0, 1, 127, 128, 100000 };
+
+	private final static RawComparator<?> REGISTERED = WritableComparator.get(CabTripRevenueRecord.class);
+	private final static CabTripRevenueRecordComp SORT = new CabTripRevenueRecordComp();
+
+
+	@Test
+	public void edgeValues() throws IOException
+	{
+		CabTripRevenueRecord copy = new CabTripRevenueRecord();
+		long[] times = CabIDTimestampTest.TIMES;
+		for (int i = 0; i < times.length; i++)
+		{
+			for (int j = 0; j < times.length; j++)
+			{
+				CabTripRevenueRecord record = new CabTripRevenueRecord(times[i], times[j], ZONES[(i + j) % ZONES.length]);
+				CabIDTimestampTest.assertRoundTrip(record, copy);
+				assertEquals(record.getZone(), copy.getZone());
+
+				for (long end : times)
+				{
+					checkPair(record, new CabTripRevenueRecord(times[i], end, 0));
+					checkPair(record, new CabTripRevenueRecord(end, times[j], 1));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void randomPairsCompareAsObjects() throws IOException
+	{
+		Random random = new Random(20080517L);
+		for (int n = 0; n < 100000; n++)
+		{
+			CabTripRevenueRecord a = randomRecord(random);
+			CabTripRevenueRecord b = randomRecord(random);
+			// trips starting together are ordered by their end
+			if (random.nextBoolean())
+				b.setStart_timestamp(a.getStart_timestamp());
+			checkPair(a, b);
+		}
+	}
+
+
+	private static CabTripRevenueRecord randomRecord(Random random)
+	{
+		long start = random.nextBoolean() ? 1211000000L + random.nextInt(1000000) : random.nextLong();
+		long end = random.nextBoolean() ? start + random.nextInt(7200) : random.nextLong();
+		return new CabTripRevenueRecord(start, end, random.nextInt(300));
+	}
+
+	private static void checkPair(CabTripRevenueRecord a, CabTripRevenueRecord b) throws IOException
+	{
+		String msg = a+" vs "+b;
+		int expected = Integer.signum(a.compareTo(b));
+		assertEquals(msg, expected, CabIDTimestampTest.rawCompare(REGISTERED, a, b));
+		assertEquals(msg, expected, CabIDTimestampTest.rawCompare(SORT, a, b));
+		assertEquals(msg, expected, Integer.signum(SORT.compare(a, b)));
+	}
+}
@@ -0,0 +1,164 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+/**
+ * CabTripSegment's wire format must give back every field as written, whether the
+ * coordinates go as micro-degrees or fall back to doubles
+ */
+public class CabTripSegmentTest {
+
+	private final DataOutputBuffer out = new DataOutputBuffer();
+	private final DataInputBuffer in = new DataInputBuffer();
+	// read into one instance throughout, as the shuffle does
+	private final CabTripSegment copy = new CabTripSegment();
+
+	// start and end points, as lat, long, lat, long: a typical segment, then negatives
+	// either side of the equator and the meridians, and the extremes
+	final static double[][] COORDINATES = {
+		{ 37.75134, -122.39488, 37.75136, -122.39527 },
+		{ -33.868820, -151.209296, -33.868821, 151.209296 },
+		{ -90d, -180d, 90d, 180d },
+		{ -0.000001, -0.000001, 0.000001, 0.000001 } };
+
+	// values off the micro-degree grid, any one of which sends the coordinates as doubles
+	final static double[] OFF_GRID = { 37.1234567, -122.00000049, -0d, 1e-7, Double.MIN_VALUE, 1e300,
+		Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+
+	@Test
+	public void microDegrees() throws IOException
+	{
+		double[] c = COORDINATES[0];
+		roundTrip(new CabTripSegment("E", 1211018404L, c[0], c[1], "M", 1211018465L, c[2], c[3]));
+		// two vlongs and four small vints, not four doubles
+		assertTrue(out.getLength() < 24);
+	}
+
+	@Test
+	public void coordinates() throws IOException
+	{
+		for (double[] c : COORDINATES)
+			roundTrip(new CabTripSegment("M", 0L, c[0], c[1], "M", 60L, c[2], c[3]));
+		for (double v : OFF_GRID)
+		{
+			roundTrip(new CabTripSegment("M", 100L, v, -122.4, "M", 160L, 37.7, -122.4));
+			roundTrip(new CabTripSegment("M", 100L, 37.7, -122.4, "M", 160L, 37.7, v));
+		}
+	}
+
+	@Test
+	public void statuses() throws IOException
+	{
+		String[] statuses = { "", "E", "M", "X", "EM", "e" };
+		for (String start : statuses)
+		{
+			for (String end : statuses)
+				roundTrip(new CabTripSegment(start, 100L, 37.7, -122.4, end, 160L, 37.8, -122.5));
+		}
+	}
+
+	@Test
+	public void extremeTimes() throws IOException
+	{
+		long[] times = { Long.MIN_VALUE, -1L, 0L, 1L, Long.MAX_VALUE };
+		for (long start : times)
+		{
+			for (long end : times)
+				roundTrip(new CabTripSegment("E", start, 37.7, -122.4, "M", end, 37.8, -122.5));
+		}
+	}
+
+	@Test
+	public void runs() throws IOException
+	{
+		CabTripSegment seg = new CabTripSegment("E", 1000L, 37.7, -122.4, "M", 1060L, 37.71, -122.41);
+		for (int i = 1; i <= 40; i++)
+			seg.appendToRun(1060L + i * 60L, 37.71 - i * 0.001, -122.41 + i * 0.002);
+		roundTrip(seg);
+
+		// one point off the micro-degree grid sends the whole segment as doubles
+		seg.appendToRun(4000L, 37.12345678, -122.4);
+		roundTrip(seg);
+
+		// a segment without a run, read into an instance holding one
+		roundTrip(new CabTripSegment("M", 5000L, 37.7, -122.4, "E", 5060L, 37.8, -122.5));
+	}
+
+	@Test
+	public void random() throws IOException
+	{
+		Random random = new Random(20080517L);
+		String[] statuses = { "E", "M", "", "X" };
+		for (int n = 0; n < 20000; n++)
+		{
+			boolean grid = random.nextInt(4) != 0;
+			long ts = random.nextInt(4) == 0 ? random.nextLong() : 1211000000L + random.nextInt(1000000);
+			CabTripSegment seg = new CabTripSegment(statuses[random.nextInt(4)], ts,
+					randomDegrees(random, 90, grid), randomDegrees(random, 180, grid),
+					statuses[random.nextInt(4)], ts + random.nextInt(7200) - 60,
+					randomDegrees(random, 90, grid), randomDegrees(random, 180, grid));
+			int runLength = random.nextInt(3) == 0 ? random.nextInt(50) : 0;
+			for (int i = 0; i < runLength; i++)
+				seg.appendToRun(ts + i * 60L, randomDegrees(random, 90, grid), randomDegrees(random, 180, grid));
+			roundTrip(seg);
+		}
+	}
+
+
+	static double randomDegrees(Random random, int limit, boolean grid)
+	{
+		if (grid)
+			return GpsCoordinates.toDegrees(random.nextInt(2 * limit * GpsCoordinates.SCALE + 1) - limit * GpsCoordinates.SCALE);
+		return (random.nextDouble() * 2d - 1d) * limit;
+	}
+
+	/**
+	 * writes seg, reads it back into copy, and checks every field and that all the
+	 * bytes were read
+	 */
+	private void roundTrip(CabTripSegment seg) throws IOException
+	{
+		out.reset();
+		seg.write(out);
+		in.reset(out.getData(), out.getLength());
+		copy.readFields(in);
+		assertEquals("bytes left", 0, in.available());
+		assertSameSegment(seg, copy);
+	}
+
+	static void assertSameSegment(CabTripSegment expected, CabTripSegment actual)
+	{
+		String msg = expected.toString();
+		assertEquals(msg, expected.getNumSegments(), actual.getNumSegments());
+		CabTripSegment e = new CabTripSegment();
+		CabTripSegment a = new CabTripSegment();
+		for (int i = 0; i < expected.getNumSegments(); i++)
+		{
+			expected.getSegment(i, e);
+			actual.getSegment(i, a);
+			assertEquals(msg, e.getStart_status(), a.getStart_status());
+			assertEquals(msg, e.getStart_timestamp().get(), a.getStart_timestamp().get());
+			assertSameDouble(msg, e.getStart_lat().get(), a.getStart_lat().get());
+			assertSameDouble(msg, e.getStart_long().get(), a.getStart_long().get());
+			assertEquals(msg, e.getEnd_status(), a.getEnd_status());
+			assertEquals(msg, e.getEnd_timestamp().get(), a.getEnd_timestamp().get());
+			assertSameDouble(msg, e.getEnd_lat().get(), a.getEnd_lat().get());
+			assertSameDouble(msg, e.getEnd_long().get(), a.getEnd_long().get());
+		}
+	}
+
+	/**
+	 * same bits, so that -0.0 and 0.0 differ and NaN equals NaN
+	 */
+	static void assertSameDouble(String msg, double expected, double actual)
+	{
+		assertEquals(msg+": "+expected+" vs "+actual, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+	}
+}
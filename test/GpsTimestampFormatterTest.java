@@ -0,0 +1,150 @@
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Random;
+import java.util.SimpleTimeZone;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * GpsTimestampFormatter must give the same text as the SimpleDateFormat it replaced,
+ * for every epoch second, in whatever order they come
+ */
+public class GpsTimestampFormatterTest {
+
+	// DST at midnight, half-hour DST, a skipped day, half-hour and 45 minute zones, no DST
+	private final static String[] ZONES = { "America/Los_Angeles", "Europe/London",
+		"America/Sao_Paulo", "Australia/Lord_Howe", "Pacific/Apia", "Asia/Kolkata",
+		"Asia/Kathmandu", "UTC" };
+
+
+	@Test
+	public void transitionHoursMatchSimpleDateFormat()
+	{
+		for (String id : ZONES)
+		{
+			TimeZone zone = TimeZone.getTimeZone(id);
+			ZoneRules rules = zone.toZoneId().getRules();
+			Checker checker = new Checker(zone);
+
+			Instant t = Instant.parse("1850-01-01T00:00:00Z");
+			ZoneOffsetTransition next;
+			while ((next = rules.nextTransition(t)) != null && next.getInstant().isBefore(Instant.parse("2040-01-01T00:00:00Z")))
+			{
+				// every minute of the hours either side, forwards then every five minutes
+				// backwards, and the seconds either side of the transition itself
+				long at = next.getInstant().getEpochSecond();
+				for (long s = at - 2 * 3600L; s < at + 2 * 3600L; s += 60L)
+					checker.check(s + 59L);
+				for (long s = at + 2 * 3600L; s > at - 2 * 3600L; s -= 300L)
+					checker.check(s);
+				for (long s = at - 2L; s <= at + 2L; s++)
+					checker.check(s);
+				t = next.getInstant();
+			}
+		}
+	}
+
+	@Test
+	public void sampleRunsMatchSimpleDateFormat()
+	{
+		// a day of samples about a minute apart, as the trips of one taxi, in each zone
+		Random random = new Random(20080517L);
+		for (String id : ZONES)
+		{
+			Checker checker = new Checker(TimeZone.getTimeZone(id));
+			long ts = 1211000000L;
+			for (int n = 0; n < 1440; n++)
+			{
+				checker.check(ts);
+				ts += 30 + random.nextInt(60);
+			}
+		}
+	}
+
+	@Test
+	public void randomEpochsMatchSimpleDateFormat()
+	{
+		// hours that share cache slots, years before 1900 and after 9999, and BC
+		Random random = new Random(20080517L);
+		for (String id : ZONES)
+		{
+			Checker checker = new Checker(TimeZone.getTimeZone(id));
+			for (int n = 0; n < 5000; n++)
+			{
+				checker.check(1211000000L + random.nextInt(64 * 3600 * 4));
+				checker.check(random.nextInt());
+				checker.check(random.nextLong() % 400000000000L);
+			}
+		}
+	}
+
+	@Test
+	public void edgeEpochsMatchSimpleDateFormat()
+	{
+		long[] epochs = { 0L, -1L, 1L, 3599L, 3600L, -3600L, -3601L, -2208988800L, -2208988801L,
+			-62135596800L, -62135596801L, -62167219200L, 253402300799L, 253402300800L,
+			Integer.MAX_VALUE, Integer.MIN_VALUE };
+		for (String id : ZONES)
+		{
+			Checker checker = new Checker(TimeZone.getTimeZone(id));
+			for (long epoch : epochs)
+			{
+				checker.check(epoch);
+				checker.check(epoch);
+			}
+		}
+	}
+
+	@Test
+	public void unusualOffsetsMatchSimpleDateFormat()
+	{
+		// an offset with milliseconds, one in seconds, and summer time for a few hours of
+		// one day only
+		TimeZone[] zones = { new SimpleTimeZone(3600000 + 1234, "Custom/Millis"),
+			new SimpleTimeZone(-(7 * 3600000 + 52 * 60000 + 58000), "Custom/Seconds"),
+			new SimpleTimeZone(3600000, "Custom/ShortSummer", Calendar.MARCH, 10, 0, 10 * 3600000,
+				Calendar.MARCH, 10, 0, 13 * 3600000 + 1800000) };
+		for (TimeZone zone : zones)
+		{
+			Checker checker = new Checker(zone);
+			for (long s = 1268092800L; s < 1268352000L; s += 60L)
+			{
+				checker.check(s);
+				checker.check(s + 29L);
+			}
+		}
+	}
+
+
+	/**
+	 * formats each epoch both ways, into a buffer holding text already
+	 */
+	private static class Checker {
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+		final GpsTimestampFormatter formatter;
+		final TextOutputBuffer out = new TextOutputBuffer(8);
+
+		Checker(TimeZone zone)
+		{
+			format.setTimeZone(zone);
+			formatter = new GpsTimestampFormatter(zone);
+		}
+
+		void check(long epoch)
+		{
+			out.reset();
+			out.append((byte) '\t');
+			formatter.format(epoch, out);
+			String actual = new String(out.getData(), 1, out.getLength() - 1, StandardCharsets.UTF_8);
+			assertEquals(format.getTimeZone().getID()+" "+epoch, format.format(new Date(epoch * 1000L)), actual);
+		}
+	}
+}
@@ -0,0 +1,211 @@
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.SimpleTimeZone;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * GpsTimestampParser must give the same epoch seconds as the lenient SimpleDateFormat
+ * parsing it replaced, for every input
+ */
+public class GpsTimestampParserTest {
+
+	// DST at midnight, half-hour DST, a skipped day, a half-hour zone, no DST
+	private final static String[] ZONES = { "America/Los_Angeles", "Europe/London",
+		"America/Sao_Paulo", "Australia/Lord_Howe", "Pacific/Apia", "Asia/Kolkata", "UTC" };
+
+	private final static String[] TIMES = { "00:00:00", "00:59:59", "01:30:00", "02:00:00",
+		"02:30:00", "03:00:00", "12:34:56", "23:59:59" };
+
+
+	@Test
+	public void randomDaysMatchSimpleDateFormat() throws ParseException
+	{
+		// the days between transitions; transitionDays covers the days around them
+		Random random = new Random(20080517L);
+		long first = LocalDate.of(1900, 1, 1).toEpochDay();
+		long last = LocalDate.of(2040, 1, 1).toEpochDay();
+		for (String id : new String[] { "America/Los_Angeles", "Europe/London", "Australia/Lord_Howe" })
+		{
+			Checker checker = new Checker(TimeZone.getTimeZone(id));
+			for (int n = 0; n < 2000; n++)
+			{
+				LocalDate d = LocalDate.ofEpochDay(first + (long) (random.nextDouble() * (last - first)));
+				for (String time : TIMES)
+					checker.check(d+" "+time);
+			}
+		}
+	}
+
+	@Test
+	public void transitionDaysMatchSimpleDateFormat() throws ParseException
+	{
+		for (String id : ZONES)
+		{
+			TimeZone zone = TimeZone.getTimeZone(id);
+			ZoneRules rules = zone.toZoneId().getRules();
+			Checker checker = new Checker(zone);
+
+			Instant t = Instant.parse("1900-01-01T00:00:00Z");
+			ZoneOffsetTransition next;
+			while ((next = rules.nextTransition(t)) != null && next.getInstant().isBefore(Instant.parse("2040-01-01T00:00:00Z")))
+			{
+				// the local days either side of the transition, every half hour and the
+				// last second of each hour
+				LocalDate day = next.getDateTimeBefore().toLocalDate();
+				for (LocalDate d = day.minusDays(1); !d.isAfter(day.plusDays(1)); d = d.plusDays(1))
+				{
+					for (int m = 0; m < 24 * 60; m += 30)
+						checker.check(String.format("%s %02d:%02d:00", d, m / 60, m % 60));
+					for (int h = 0; h < 24; h++)
+						checker.check(String.format("%s %02d:59:59", d, h));
+				}
+				t = next.getInstant();
+			}
+		}
+	}
+
+	@Test
+	public void twoTransitionsInOneDay() throws ParseException
+	{
+		// summer time from 10:00 to 20:00 on the 10th of March only: the offsets either
+		// side of the day are the same, but the day is not uniform
+		TimeZone zone = new SimpleTimeZone(3600000, "Custom/ShortSummer",
+				Calendar.MARCH, 10, 0, 10 * 3600000, Calendar.MARCH, 10, 0, 20 * 3600000);
+		Checker checker = new Checker(zone);
+		for (int day = 8; day <= 12; day++)
+		{
+			for (int m = 0; m < 24 * 60; m += 15)
+				checker.check(String.format("2010-03-%02d %02d:%02d:00", day, m / 60, m % 60));
+		}
+		assertEquals(1268215200L, checker.parser.parse("2010-03-10 12:00:00"));
+	}
+
+	@Test
+	public void datesBefore1900MatchSimpleDateFormat() throws ParseException
+	{
+		String[] dates = { "1899-12-31 23:59:59", "1883-11-18 12:07:02", "1883-11-18 11:59:59",
+			"1800-02-29 00:00:00", "1600-02-29 00:00:00", "1582-10-04 12:00:00", "1582-10-10 12:00:00",
+			"1582-10-15 00:00:00", "0001-01-01 00:00:00", "0000-01-01 00:00:00" };
+		for (String id : ZONES)
+		{
+			Checker checker = new Checker(TimeZone.getTimeZone(id));
+			for (String date : dates)
+				checker.check(date);
+		}
+	}
+
+	@Test
+	public void malformedInputMatchesSimpleDateFormat() throws ParseException
+	{
+		String[] inputs = { "2008-02-30 10:00:00", "2008-02-29 10:00:00", "2007-02-29 10:00:00",
+			"2008-13-01 00:00:00", "2008-00-10 00:00:00", "2008-05-00 00:00:00", "2008-05-18 24:00:00",
+			"2008-05-18 23:60:00", "2008-05-18 23:59:60", "2008-5-18 01:00:25", "2008-05-18 1:00:25",
+			"2008/05/18 01:00:25", "2008-05-18T01:00:25", "2008-05-18 01:00:25 ", " 2008-05-18 01:00:2",
+			"2008-05-18 01:00:2x", "+008-05-18 01:00:25", "2008-+5-18 01:00:25", "abcd-ef-gh ij:kl:mn",
+			"", "2008", "2008-05-18", "2008-05-18 01:00:25.5", "20080518 010025",
+			"2008-05-18 01:00:\u00b25", "\u0662008-05-18 01:00:25" };
+		for (String id : ZONES)
+		{
+			Checker checker = new Checker(TimeZone.getTimeZone(id));
+			for (String input : inputs)
+				checker.check(input);
+		}
+	}
+
+	@Test
+	public void isoMatchesSimpleDateFormat() throws ParseException
+	{
+		String[] inputs = { "2008-06-09T13:38:37-0700", "2008-06-09T13:38:37+0000", "2008-06-09T13:38:37-0000",
+			"2008-06-09T13:38:37+0530", "2008-06-09T13:38:37+1345", "1899-12-31T23:59:59-0752",
+			"1969-12-31T23:59:59+0000", "2008-02-30T13:38:37-0700", "2008-06-09T24:00:00-0700",
+			"2008-06-09T13:38:37-07:00", "2008-06-09T13:38:37Z", "2008-06-09T13:38:37 0700",
+			"2008-06-09 13:38:37-0700", "2008-06-09T13:38:37-07x0", "2008-06-09T13:38:37-9999" };
+		for (String id : new String[] { "America/Los_Angeles", "UTC" })
+		{
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+			format.setTimeZone(TimeZone.getTimeZone(id));
+			GpsTimestampParser parser = new GpsTimestampParser(TimeZone.getTimeZone(id));
+			for (String input : inputs)
+			{
+				Long expected = parseOrNull(format, input);
+				assertEquals(input, expected, parseIsoOrNull(parser, input));
+				byte[] b = ("xx"+input+"yy").getBytes(StandardCharsets.UTF_8);
+				Long actual;
+				try {
+					actual = parser.parseIso(b, 2, b.length - 4);
+				} catch (ParseException e) {
+					actual = null;
+				}
+				assertEquals(input, expected, actual);
+			}
+		}
+	}
+
+
+	/**
+	 * parses each input both ways, as a String and from the middle of a byte buffer
+	 */
+	private static class Checker {
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		final GpsTimestampParser parser;
+
+		Checker(TimeZone zone)
+		{
+			format.setTimeZone(zone);
+			parser = new GpsTimestampParser(zone);
+		}
+
+		void check(String input)
+		{
+			Long expected = parseOrNull(format, input);
+
+			Long actual;
+			try {
+				actual = parser.parse(input);
+			} catch (ParseException e) {
+				actual = null;
+			}
+			assertEquals(format.getTimeZone().getID()+" ["+input+"]", expected, actual);
+
+			byte[] b = ("xx"+input+"yy").getBytes(StandardCharsets.UTF_8);
+			try {
+				actual = parser.parse(b, 2, b.length - 4);
+			} catch (ParseException e) {
+				actual = null;
+			}
+			assertEquals(format.getTimeZone().getID()+" ["+input+"] from bytes", expected, actual);
+		}
+	}
+
+	/**
+	 * @return epoch seconds, or null if the input does not parse
+	 */
+	private static Long parseOrNull(SimpleDateFormat format, String input)
+	{
+		try {
+			return format.parse(input).getTime() / 1000;
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+
+	private static Long parseIsoOrNull(GpsTimestampParser parser, String input)
+	{
+		try {
+			return parser.parseIso(input);
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * TextOutputBuffer must write numbers byte for byte as the String conversions it
+ * replaced in the output path
+ */
+public class TextOutputBufferTest {
+
+	private final static double[] EDGE_DOUBLES = { 0d, -0d, 1d, -1d, 0.1, -0.1, 0.5, 1e-3, -1e-3,
+		Math.nextDown(1e-3), Math.nextUp(1e-3), 0.0010, 0.002, 0.0015, 0.000999, 1e-4, 1e-7, 9999999.999999,
+		-9999999.999999, Math.nextDown(1e7), 1e7, 1e7 + 0.5, 1234567.0, 123456.123456, 0.123456, 0.1234565,
+		37.75134, -122.39488, 37.7513400000001, 90d, -180d, 180.000001, 1e15, 1e16, 1e21, 1e23, 2e23,
+		Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY,
+		Double.NEGATIVE_INFINITY, 4.35, 0.3, 0.1 + 0.2, 100d / 3d, 2d / 3d };
+
+	private final static long[] EDGE_LONGS = { 0L, 1L, -1L, 9L, 10L, -10L, 99L, 100L, 1211018404L,
+		Integer.MAX_VALUE, Integer.MIN_VALUE, 999999999999999999L, 1000000000000000000L,
+		Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1 };
+
+	private final static double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7 };
+	private final static double[] POWERS = { 1e-9, 1e-6, 1e-4, 1e-3, 1e-2, 1e-1, 1d, 1e1, 1e3, 1e6, 1e7, 1e9, 1e18 };
+
+	private final TextOutputBuffer out = new TextOutputBuffer(4);
+
+
+	@Test
+	public void edgeDoublesMatchDoubleToString()
+	{
+		for (double v : EDGE_DOUBLES)
+			checkDouble(v);
+	}
+
+	@Test
+	public void coordinatesMatchDoubleToString()
+	{
+		// every micro-degree near the edges of the fast path, and random ones
+		for (int micro = -200000; micro <= 200000; micro++)
+			checkDouble(GpsCoordinates.toDegrees(micro));
+		Random random = new Random(20080517L);
+		for (int n = 0; n < 200000; n++)
+			checkDouble(GpsCoordinates.toDegrees(random.nextInt(360 * GpsCoordinates.SCALE + 1) - 180 * GpsCoordinates.SCALE));
+		for (long micro = 9999990000000L; micro < 10000000000000L; micro += 9973)
+			checkDouble(micro / (double) GpsCoordinates.SCALE);
+	}
+
+	@Test
+	public void randomDoublesMatchDoubleToString()
+	{
+		Random random = new Random(20080517L);
+		for (int n = 0; n < 25000; n++)
+		{
+			checkDouble((random.nextDouble() * 2d - 1d) * 180d);
+			checkDouble(random.nextDouble() * POWERS[random.nextInt(POWERS.length)]);
+			checkDouble(Double.longBitsToDouble(random.nextLong()));
+			// decimals with few digits, as distances and fares are
+			checkDouble(random.nextInt(100000000) / POWERS[random.nextInt(POWERS.length)]);
+		}
+	}
+
+	@Test
+	public void edgeDoublesMatchStringFormat()
+	{
+		for (double v : EDGE_DOUBLES)
+		{
+			for (int decimals = 0; decimals <= 20; decimals++)
+				checkFixed(v, decimals);
+		}
+	}
+
+	@Test
+	public void tiesMatchStringFormat()
+	{
+		// decimals ending in 5, whose doubles lie either side of the tie, and their
+		// neighbours; and the negatives which round to zero
+		double[] ties = { 0.5, 1.5, 2.5, 0.125, 0.375, 1.005, 2.675, 0.285, 1.115, 8.185, 10.245,
+			0.0005, 0.0015, 1234567.8945, 4503599627370495.5, 0.049999999999999996, 0.12499999999999999,
+			0.12500000000000001, 0.004999, 0.005, 0.0051 };
+		for (double tie : ties)
+		{
+			for (double v : new double[] { tie, Math.nextDown(tie), Math.nextUp(tie) })
+			{
+				for (int decimals = 0; decimals <= 6; decimals++)
+				{
+					checkFixed(v, decimals);
+					checkFixed(-v, decimals);
+				}
+			}
+		}
+		for (int n = 0; n < 5000; n++)
+		{
+			for (int decimals = 0; decimals <= 4; decimals++)
+			{
+				checkFixed((2 * n + 1) / (2 * POWERS_OF_TEN[decimals]), decimals);
+				checkFixed(-(2 * n + 1) / (2 * POWERS_OF_TEN[decimals]), decimals);
+			}
+		}
+	}
+
+	@Test
+	public void randomDoublesMatchStringFormat()
+	{
+		Random random = new Random(20080517L);
+		for (int n = 0; n < 20000; n++)
+		{
+			int decimals = random.nextInt(8);
+			checkFixed((random.nextDouble() * 2d - 1d) * 180d, decimals);
+			checkFixed(random.nextDouble() * POWERS[random.nextInt(POWERS.length)], decimals);
+			checkFixed(random.nextInt(100000000) / POWERS[random.nextInt(POWERS.length)], decimals);
+			// fares and distances as CabTripRevenueCalculator gives them
+			checkFixed(3.5 + random.nextInt(100000) * 0.0001 * 1.71, decimals);
+		}
+	}
+
+	@Test
+	public void negativeDecimalsMatchDoubleToString()
+	{
+		for (double v : EDGE_DOUBLES)
+		{
+			out.reset();
+			out.append(v, -1);
+			assertBytes(Double.toString(v), out);
+		}
+	}
+
+	@Test
+	public void longsMatchLongToString()
+	{
+		for (long v : EDGE_LONGS)
+		{
+			checkLong(v);
+			checkLong(v / 10);
+		}
+		Random random = new Random(20080517L);
+		for (int n = 0; n < 100000; n++)
+		{
+			checkLong(random.nextLong());
+			checkLong(random.nextInt());
+		}
+	}
+
+	@Test
+	public void stringsAsUtf8()
+	{
+		String[] strings = { "", "E", "2008-05-17T10:00:04-0700", "caf\u00e9", "\u00e9t\u00e9", "\ud83d\ude95 taxi" };
+		for (String s : strings)
+		{
+			out.reset();
+			out.append((byte) 'x').append(s).append((byte) 'y');
+			assertBytes("x"+s+"y", out);
+		}
+	}
+
+	@Test
+	public void appendsAfterGrowing()
+	{
+		StringBuilder expected = new StringBuilder();
+		out.reset();
+		for (int i = 0; i < 1000; i++)
+		{
+			out.append(i * 0.001).append((byte) '\t').append((long) i).append((byte) '\n');
+			expected.append(i * 0.001).append('\t').append(i).append('\n');
+		}
+		assertBytes(expected.toString(), out);
+	}
+
+
+	private void checkDouble(double v)
+	{
+		out.reset();
+		out.append(v);
+		assertBytes(Double.toString(v), out);
+	}
+
+	private void checkFixed(double v, int decimals)
+	{
+		out.reset();
+		out.append(v, decimals);
+		assertBytes(String.format(Locale.ROOT, "%."+decimals+"f", v), out);
+	}
+
+	private void checkLong(long v)
+	{
+		out.reset();
+		out.append(v);
+		assertBytes(Long.toString(v), out);
+	}
+
+	static void assertBytes(String expected, TextOutputBuffer actual)
+	{
+		assertEquals(expected, new String(actual.getData(), 0, actual.getLength(), StandardCharsets.UTF_8));
+	}
+}